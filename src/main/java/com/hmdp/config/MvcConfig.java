@@ -1,14 +1,17 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Set;
 
 /**
  * @author hyh
@@ -21,6 +24,12 @@ public class MvcConfig implements WebMvcConfigurer {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 管理员用户id，逗号分隔；为空时所有管理接口都返回403
+     */
+    @Value("${hmdp.admin.user-ids:}")
+    private Set<Long> adminIds;
+
     //默认order都是0，此时按照拦截器添加顺序执行
     //也可以指定order值，order值越小优先级越高
     @Override
@@ -29,14 +38,24 @@ public class MvcConfig implements WebMvcConfigurer {
         registry.addInterceptor(new LoginInterceptor())
                 .excludePathPatterns(
                         "/shop/**",
-                        "/voucher/**",
+                        //只放行查询，新增秒杀券和补充库存需要登录
+                        "/voucher/list/**",
                         "/shop-type/**",
                         //todo upload 不能放行 这里是方便测试
                         "/upload/**",
                         "/blog/hot",
                         "/user/code",
-                        "/user/login"
+                        "/user/login",
+                        //EventSource不能携带请求头，订阅订单结果在接口中校验登录用户或订阅令牌
+                        "/voucher-order/*/events"
                 ).order(1);
+        //管理接口拦截器：新增优惠券、补充秒杀库存只允许管理员调用
+        registry.addInterceptor(new AdminInterceptor(adminIds))
+                .addPathPatterns(
+                        "/voucher",
+                        "/voucher/seckill",
+                        "/voucher/seckill/*/stock"
+                ).order(2);
         //token刷新拦截器
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
                 .addPathPatterns("/**")//可以不写 默认是拦截所有
@@ -0,0 +1,60 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.MigratingCacheCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+/**
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Configuration
+public class RedisConfig {
+
+    /**
+     * 全局共用一个pub/sub监听容器，各组件只注册自己的channel，一个节点只占用一条订阅连接
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+
+    /**
+     * CacheClient使用的template，key为字符串，value为编解码器产生的原始字节
+     */
+    @Bean
+    public RedisTemplate<String, byte[]> cacheRedisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        return template;
+    }
+
+    /**
+     * 缓存编解码器：json（默认，兼容旧数据）、binary（紧凑二进制）、migrate（写二进制，读两种格式）
+     */
+    @Bean
+    public CacheCodec cacheCodec(@Value("${hmdp.cache.codec:json}") String codec) {
+        switch (codec) {
+            case "binary":
+                return new BinaryCacheCodec();
+            case "migrate":
+                return new MigratingCacheCodec();
+            case "json":
+                return new JsonCacheCodec();
+            default:
+                throw new IllegalArgumentException("不支持的缓存编解码器: " + codec);
+        }
+    }
+}
@@ -45,6 +45,20 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 补充秒杀券库存，只允许管理员调用
+     * @param voucherId 优惠券id
+     * @param count 补充的数量，必须大于0
+     * @return 无
+     */
+    @PutMapping("seckill/{id}/stock")
+    public Result restockSeckillVoucher(@PathVariable("id") Long voucherId, @RequestParam("count") Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充的库存必须大于0");
+        }
+        return voucherService.restockSeckillVoucher(voucherId, count);
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
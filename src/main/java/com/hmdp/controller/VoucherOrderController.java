@@ -2,14 +2,24 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.OrderStatusNotifier;
+import com.hmdp.utils.RateLimit;
+import com.hmdp.utils.UserHolder;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -24,8 +34,47 @@ import javax.annotation.Resource;
 public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
+    @Resource
+    private OrderStatusNotifier orderStatusNotifier;
     @PostMapping("seckill/{id}")
+    @RateLimit(name = "seckill", userPerSecond = 1, userBurst = 3,
+            targetPerSecond = 5000, targetBurst = 1000, shedOnBacklog = true)
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 异步秒杀，等待redis时释放tomcat线程，redis返回后再分派回servlet容器写出结果
+     */
+    @PostMapping("seckill/{id}/async")
+    @RateLimit(name = "seckill", userPerSecond = 1, userBurst = 3,
+            targetPerSecond = 5000, targetBurst = 1000, shedOnBacklog = true)
+    public CompletableFuture<Result> seckillVoucherAsync(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.seckillVoucherAsync(voucherId);
+    }
+
+    /**
+     * 申请订阅秒杀订单结果的短期令牌，浏览器的EventSource不能携带authorization请求头，用令牌代替
+     */
+    @PostMapping("{id}/events/token")
+    public Result orderEventsToken(@PathVariable("id") Long orderId) {
+        return Result.ok(orderStatusNotifier.issueSubscribeToken(orderId, UserHolder.getUser().getId()));
+    }
+
+    /**
+     * 订阅秒杀订单的结果，订单入库或被拒绝时推送一次status事件后结束
+     * 携带authorization请求头的客户端直接订阅，EventSource通过?token=传入订阅令牌
+     */
+    @GetMapping(value = "{id}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter orderEvents(@PathVariable("id") Long orderId,
+                                  @RequestParam(value = "token", required = false) String token,
+                                  HttpServletResponse response) {
+        UserDTO user = UserHolder.getUser();
+        Long userId = user != null ? user.getId() : orderStatusNotifier.verifySubscribeToken(orderId, token);
+        if (userId == null) {
+            response.setStatus(401);
+            return null;
+        }
+        return orderStatusNotifier.subscribe(orderId, userId);
+    }
 }
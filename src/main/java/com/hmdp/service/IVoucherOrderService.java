@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +19,9 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
+    CompletableFuture<Result> seckillVoucherAsync(Long voucherId);
+
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    void createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
 }
@@ -15,6 +15,9 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterGuard;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotKeyDetector;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -25,11 +28,12 @@ import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
-import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -47,6 +51,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
 
     @Override
     public Result queryHotBlog(Integer current) {
@@ -56,23 +66,25 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 批量查询用户
+        queryBlogUser(records);
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
     @Override
     public Result queryBlogById(Long id) {
+        //布隆过滤器判断一定不存在，不再查询数据库
+        if (!bloomFilterGuard.mightContain(BloomFilterGuard.BLOG, id)) {
+            return Result.fail("笔记不存在！");
+        }
         //查询blog
         Blog blog = getById(id);
         if (blog == null) {
             return Result.fail("笔记不存在！");
         }
         //查询blog有关的用户
-        queryBlogUser(blog);
+        queryBlogUser(Collections.singletonList(blog));
         //查询blog是否被点赞
         isBlogLiked(blog);
         return Result.ok(blog);
@@ -88,6 +100,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         Long userId = user.getId();
         // blog id作为key，userId作为value
         String key = BLOG_LIKED_KEY + blog.getId();
+        hotKeyDetector.record(key);
         //2判断当前登录用户是否已经点赞
         Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
         blog.setIsLike(score != null);
@@ -99,6 +112,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         Long userId = UserHolder.getUser().getId();
         // blog id作为key，userId作为value
         String key = BLOG_LIKED_KEY + id;
+        hotKeyDetector.record(key);
         //2判断当前登录用户是否已经点赞
         Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
         if (score == null) {
@@ -123,6 +137,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogLikes(Long id) {
         //1 查询top5点赞用户 zrange key 0 4
         String key = BLOG_LIKED_KEY + id;
+        hotKeyDetector.record(key);
         Set<String> top5 = stringRedisTemplate.opsForZSet().range(key, 0, 4);
         if (top5 == null || top5.isEmpty()) {
             return Result.ok(Collections.emptyList());
@@ -153,6 +168,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("新增笔记失败");
         }
+        // 加入布隆过滤器
+        bloomFilterGuard.add(BloomFilterGuard.BLOG, blog.getId());
         // 查询笔记作者的所有粉丝 select * from tb_follow where follow_user_id = ?
         List<Follow> follows = followService.query()
                 .eq("follow_user_id", user.getId()).list();
@@ -205,9 +222,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         String idStr = StrUtil.join(",", ids);
         List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
 
+        // 5.1.批量查询blog的发布的用户
+        queryBlogUser(blogs);
         for (Blog blog : blogs) {
-            // 5.1.查询当前blog的发布的用户
-            queryBlogUser(blog);
             // 5.2.查询blog是否被点赞
             isBlogLiked(blog);
         }
@@ -221,10 +238,25 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(r);
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    /**
+     * 批量查询笔记作者，一次MGET + 一次批量查库 + 一次pipeline回写，避免逐个查询的N+1问题
+     */
+    private void queryBlogUser(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> users = cacheClient.queryBatchWithPassThrough(CACHE_USER_KEY, userIds, UserDTO.class,
+                ids -> userService.listByIds(ids).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user == null) {
+                continue;
+            }
+            blog.setName(user.getNickName());
+            blog.setIcon(user.getIcon());
+        }
     }
 }
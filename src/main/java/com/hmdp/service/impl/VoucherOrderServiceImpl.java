@@ -1,32 +1,52 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.OrderStatusNotifier;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillBuyerDedup;
+import com.hmdp.utils.SeckillStockLeases;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillVoucherMetaCache;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.connection.stream.Record;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.ORDER_DLQ_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STREAM_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 /**
  * <p>
@@ -49,91 +69,221 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillBuyerDedup seckillBuyerDedup;
+
+    @Resource
+    private SeckillVoucherMetaCache seckillVoucherMetaCache;
+
+    @Resource
+    private OrderStatusNotifier orderStatusNotifier;
+    @Resource
+    private SeckillStockLeases seckillStockLeases;
+
+    /**
+     * 代理对象，保证事务生效；注入而不是在seckillVoucher中获取，重启后直接处理pending-list时也不为空
+     */
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
-    //3.获取代理对象
+    /**
+     * 每次最多处理的订单数
+     */
+    @Value("${hmdp.seckill.order.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 不足一批时最多再等待的时间
+     */
+    @Value("${hmdp.seckill.order.max-linger:50ms}")
+    private Duration maxLinger;
 
     //秒杀判断库存和一人一单的lua脚本
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
+    /**
+     * 秒杀脚本返回值1 ~ 4对应的失败原因
+     */
+    private static final String[] SECKILL_FAILURES = {"库存不足", "不能重复下单", "秒杀尚未开始", "秒杀已经结束"};
+
     static {
         SECKILL_SCRIPT = new DefaultRedisScript();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTER = Executors.newSingleThreadExecutor();
+    //认领其他消费者长时间未确认的消息
+    private static final DefaultRedisScript<List> AUTOCLAIM_SCRIPT;
+
+    static {
+        AUTOCLAIM_SCRIPT = new DefaultRedisScript<>();
+        AUTOCLAIM_SCRIPT.setLocation(new ClassPathResource("stream_autoclaim.lua"));
+        AUTOCLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    private static final String ORDER_GROUP = "g1";
+
+    /**
+     * 消费者线程数，每个线程是消费者组中一个独立的消费者
+     */
+    @Value("${hmdp.seckill.order.consumer-threads:1}")
+    private int consumerThreads;
+
+    /**
+     * 订单stream的分区数，1表示不分区，只使用stream.orders
+     */
+    @Value("${hmdp.seckill.order.partitions:1}")
+    private int partitions;
+
+    /**
+     * 分区依据：voucher（按优惠券id）或user（按用户id）
+     */
+    @Value("${hmdp.seckill.order.partition-by:voucher}")
+    private String partitionBy;
+
+    /**
+     * 消费者名称前缀，默认为主机名:进程号，保证每个实例的消费者名称不同
+     */
+    @Value("${hmdp.seckill.order.consumer-name:}")
+    private String consumerName;
+
+    /**
+     * pending消息空闲超过该时间才会被恢复任务认领
+     */
+    @Value("${hmdp.seckill.order.claim-min-idle:PT60S}")
+    private Duration claimMinIdle;
+
+    /**
+     * 投递次数超过该值的消息转入死信stream
+     */
+    @Value("${hmdp.seckill.order.max-deliveries:5}")
+    private int maxDeliveries;
+
+    /**
+     * 下单时的一人一单检查：query先查询已有订单；unique-index依赖(user_id, voucher_id)唯一索引，
+     * INSERT IGNORE跳过重复订单，不需要查询和分布式锁
+     */
+    @Value("${hmdp.seckill.order.dedup-by:query}")
+    private String dedupBy;
+
+    private ExecutorService seckillOrderExecutor;
+
+    private Counter claimedCounter;
+    private Counter deadLetterCounter;
 
 
     //在当前类初始化完毕之后去执行这个方法
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTER.submit(new VoucherOrderHandler());
+        if (StrUtil.isBlank(consumerName)) {
+            // pid@hostname
+            String[] runtime = ManagementFactory.getRuntimeMXBean().getName().split("@");
+            consumerName = (runtime.length > 1 ? runtime[1] : "localhost") + ":" + runtime[0];
+        }
+        // 创建消费者组，stream不存在时一并创建
+        for (int i = 0; i < partitions; i++) {
+            createGroupIfAbsent(orderStream(i));
+        }
+        claimedCounter = meterRegistry.counter("seckill.order.claimed");
+        deadLetterCounter = meterRegistry.counter("seckill.order.dead-letter");
+        AtomicInteger index = new AtomicInteger();
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerThreads,
+                r -> new Thread(r, "seckill-order-" + index.getAndIncrement()));
+        for (int t = 0; t < consumerThreads; t++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(consumerName + "-" + t, streamsOf(t)));
+        }
+    }
+
+    private void createGroupIfAbsent(String stream) {
+        try {
+            stringRedisTemplate.opsForStream().createGroup(stream, ReadOffset.from("0"), ORDER_GROUP);
+        } catch (Exception e) {
+            // BUSYGROUP，消费者组已存在
+            log.debug("消费者组已存在, stream = {}", stream);
+        }
+    }
+
+    /**
+     * 第i个分区的stream名称
+     */
+    private String orderStream(int partition) {
+        return partitions <= 1 ? ORDER_STREAM_KEY : ORDER_STREAM_KEY + "." + partition;
+    }
+
+    /**
+     * 下单消息写入的分区，同一个优惠券（或用户）的订单总在同一个分区
+     */
+    private String orderStream(Long voucherId, Long userId) {
+        if (partitions <= 1) {
+            return ORDER_STREAM_KEY;
+        }
+        long hashKey = "user".equals(partitionBy) ? userId : voucherId;
+        return orderStream((int) Math.floorMod(hashKey, (long) partitions));
+    }
+
+    /**
+     * 第t个消费者线程负责的分区：线程数不少于分区数时多个线程共同消费一个分区，否则一个线程消费多个分区
+     */
+    private List<String> streamsOf(int thread) {
+        List<String> streams = new ArrayList<>();
+        if (consumerThreads >= partitions) {
+            streams.add(orderStream(thread % partitions));
+            return streams;
+        }
+        for (int p = thread; p < partitions; p += consumerThreads) {
+            streams.add(orderStream(p));
+        }
+        return streams;
     }
 
     //基于Redis stream消息队列实现秒杀优化
+    //一次读取多条消息，按优惠券分组批量扣减库存、批量插入订单、一次ACK
     private class VoucherOrderHandler implements Runnable {
-        String queueName = "stream.orders";
+        private final Consumer consumer;
+        private final StreamOffset<String>[] lastConsumed;
+
+        @SuppressWarnings("unchecked")
+        VoucherOrderHandler(String name, List<String> streams) {
+            this.consumer = Consumer.from(ORDER_GROUP, name);
+            this.lastConsumed = streams.stream()
+                    .map(stream -> StreamOffset.create(stream, ReadOffset.lastConsumed())).toArray(StreamOffset[]::new);
+        }
 
         @Override
         public void run() {
             while (true) {
                 try {
                     // 1、获取消息队列中的订单信息
-                    // XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS streams.order >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
+                    // XREADGROUP GROUP g1 host:pid-t COUNT n BLOCK 2000 STREAMS stream.orders.x ... > ...
+                    List<MapRecord<String, Object, Object>> list = readBatch();
                     //2 判断消息获取是否成功
-                    if (list == null || list.isEmpty()) {
+                    if (list.isEmpty()) {
                         //2.1 如果获取失败，说明没有消息，继续下一次循环
                         continue;
                     }
-                    // 3 解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 4 如果获取成功，可以下单
-                    HandlerVoucherOrder(voucherOrder);
-                    // 5 ACK确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    // 3 批量下单并ACK确认，失败的消息留在pending-list中，由恢复任务处理
+                    handleRecords(list);
                 } catch (Exception e) {
                     log.error("处理订单异常", e);
-                    HandlerPendingList();
-                }
-            }
-        }
-
-        private void HandlerPendingList() {
-            while (true) {
-                try {
-                    // 1、获取pending-list中的订单信息
-                    // XREADGROUP GROUP g1 c1 COUNT 1  STREAMS streams.order 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    //2 判断消息获取是否成功
-                    if (list == null || list.isEmpty()) {
-                        //2.1 如果获取失败，说明pending-list没有消息，结束循环
-                        break;
-                    }
-                    // 3 解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 4 如果获取成功，可以下单
-                    HandlerVoucherOrder(voucherOrder);
-                    // 5 ACK确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理pending-list订单异常", e);
                     try {
                         Thread.sleep(20);
                     } catch (InterruptedException ex) {
@@ -142,7 +292,173 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 }
             }
         }
+
+        /**
+         * 阻塞等待第一批消息，不足batchSize时在maxLinger内继续读取，凑满一批或超时后返回
+         */
+        private List<MapRecord<String, Object, Object>> readBatch() {
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    consumer,
+                    StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                    lastConsumed
+            );
+            if (list == null || list.isEmpty()) {
+                return batch;
+            }
+            batch.addAll(list);
+            long deadline = System.currentTimeMillis() + maxLinger.toMillis();
+            while (batch.size() < batchSize) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                list = stringRedisTemplate.opsForStream().read(
+                        consumer,
+                        StreamReadOptions.empty().count(batchSize - batch.size()).block(Duration.ofMillis(remaining)),
+                        lastConsumed
+                );
+                if (list == null || list.isEmpty()) {
+                    break;
+                }
+                batch.addAll(list);
+            }
+            return batch;
+        }
+
     }
+
+    /**
+     * 批量下单并按分区ACK；整批失败时逐条重试，找出失败的消息留在pending-list中，不影响同批的其他消息
+     */
+    private void handleRecords(List<MapRecord<String, Object, Object>> list) {
+        List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+        for (MapRecord<String, Object, Object> record : list) {
+            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+        }
+        try {
+            // 在一个事务中批量下单
+            createVoucherOrderBatchLocked(voucherOrders);
+            acknowledge(list);
+            return;
+        } catch (Exception e) {
+            log.error("批量下单失败，逐条处理, size = {}", list.size(), e);
+        }
+        List<MapRecord<String, Object, Object>> succeeded = new ArrayList<>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            try {
+                createVoucherOrderBatchLocked(Collections.singletonList(voucherOrders.get(i)));
+                succeeded.add(list.get(i));
+            } catch (Exception e) {
+                log.error("处理订单失败, stream = {}, id = {}", list.get(i).getStream(), list.get(i).getId(), e);
+            }
+        }
+        acknowledge(succeeded);
+    }
+
+    /**
+     * 每个分区一次ACK确认
+     */
+    private void acknowledge(List<? extends Record<String, ?>> records) {
+        Map<String, List<RecordId>> idsByStream = new HashMap<>();
+        for (Record<String, ?> record : records) {
+            idsByStream.computeIfAbsent(record.getStream(), k -> new ArrayList<>()).add(record.getId());
+        }
+        idsByStream.forEach((stream, ids) -> stringRedisTemplate.opsForStream()
+                .acknowledge(stream, ORDER_GROUP, ids.toArray(new RecordId[0])));
+    }
+
+    /**
+     * 恢复pending消息：用XAUTOCLAIM认领所有消费者（包括已宕机的节点）中空闲超过claimMinIdle的消息，
+     * 投递次数超过maxDeliveries的转入死信stream，其余重新下单；在独立的定时线程中执行，不阻塞正常消费
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order.recovery-interval:PT10S}")
+    public void recoverPendingOrders() {
+        Consumer recovery = Consumer.from(ORDER_GROUP, consumerName + "-recovery");
+        for (int i = 0; i < partitions; i++) {
+            String stream = orderStream(i);
+            try {
+                recoverPendingOrders(stream, recovery);
+            } catch (Exception e) {
+                log.error("恢复pending消息失败, stream = {}", stream, e);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void recoverPendingOrders(String stream, Consumer recovery) {
+        String start = "0-0";
+        do {
+            // XAUTOCLAIM stream g1 recovery minIdle start COUNT n
+            List<Object> result = stringRedisTemplate.execute(AUTOCLAIM_SCRIPT, Collections.singletonList(stream),
+                    ORDER_GROUP, recovery.getName(), String.valueOf(claimMinIdle.toMillis()), start,
+                    String.valueOf(batchSize));
+            if (result == null || result.size() < 2) {
+                return;
+            }
+            start = (String) result.get(0);
+            List<MapRecord<String, Object, Object>> claimed = new ArrayList<>();
+            List<RecordId> deleted = new ArrayList<>();
+            for (Object entry : (List<Object>) result.get(1)) {
+                List<Object> message = (List<Object>) entry;
+                RecordId id = RecordId.of((String) message.get(0));
+                if (message.size() < 2 || message.get(1) == null) {
+                    // 消息已被XDEL/XTRIM删除，只剩pending记录
+                    deleted.add(id);
+                    continue;
+                }
+                List<Object> fields = (List<Object>) message.get(1);
+                Map<Object, Object> value = new HashMap<>();
+                for (int f = 0; f + 1 < fields.size(); f += 2) {
+                    value.put(fields.get(f), fields.get(f + 1));
+                }
+                claimed.add(StreamRecords.newRecord().in(stream).withId(id).ofMap(value));
+            }
+            if (!deleted.isEmpty()) {
+                stringRedisTemplate.opsForStream().acknowledge(stream, ORDER_GROUP, deleted.toArray(new RecordId[0]));
+            }
+            if (claimed.isEmpty()) {
+                continue;
+            }
+            claimedCounter.increment(claimed.size());
+            // 查询投递次数，超过上限的转入死信stream
+            Map<RecordId, Long> deliveries = new HashMap<>();
+            stringRedisTemplate.opsForStream().pending(stream, recovery,
+                    Range.closed(claimed.get(0).getId().getValue(), claimed.get(claimed.size() - 1).getId().getValue()),
+                    claimed.size())
+                    .forEach(pending -> deliveries.put(pending.getId(), pending.getTotalDeliveryCount()));
+            List<MapRecord<String, Object, Object>> retry = new ArrayList<>(claimed.size());
+            for (MapRecord<String, Object, Object> record : claimed) {
+                long count = deliveries.getOrDefault(record.getId(), 0L);
+                if (count > maxDeliveries) {
+                    deadLetter(record, count);
+                } else {
+                    retry.add(record);
+                }
+            }
+            if (!retry.isEmpty()) {
+                handleRecords(retry);
+            }
+        } while (!"0-0".equals(start));
+    }
+
+    /**
+     * 转入死信stream并确认原消息，死信中保留原stream、原id和投递次数，便于人工处理
+     */
+    private void deadLetter(MapRecord<String, Object, Object> record, long deliveries) {
+        Map<Object, Object> value = new HashMap<>(record.getValue());
+        value.put("stream", record.getStream());
+        value.put("messageId", record.getId().getValue());
+        value.put("deliveries", String.valueOf(deliveries));
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(ORDER_DLQ_KEY).ofMap(value));
+        stringRedisTemplate.opsForStream().acknowledge(record.getStream(), ORDER_GROUP, record.getId());
+        deadLetterCounter.increment();
+        orderStatusNotifier.publish(Collections.singletonList(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true)),
+                OrderStatusNotifier.REJECTED, "下单失败");
+        log.error("订单消息投递{}次仍失败，转入死信, stream = {}, id = {}, value = {}",
+                deliveries, record.getStream(), record.getId(), record.getValue());
+    }
+
     //基于阻塞队列实现秒杀优化的版本
     /*private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024*1024);
 
@@ -155,7 +471,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                     // 1、获取阻塞队列中的订单信息
                     VoucherOrder voucherOrder = orderTasks.take();
                     // 2、创建订单
-                    HandlerVoucherOrder(voucherOrder);
+                    createVoucherOrderBatchLocked(Collections.singletonList(voucherOrder));
                 } catch (InterruptedException e) {
                     log.error("处理订单异常", e);
                 }
@@ -163,24 +479,27 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }*/
 
-    private void HandlerVoucherOrder(VoucherOrder voucherOrder) {
-        //1.获取用户，这里不能从ThreadLocal中获取用户id
-        Long userId = voucherOrder.getUserId();
-        // 2.创建锁对象
-        RLock redisLock = redissonClient.getLock("lock:order:" + userId);
-        // 3.尝试获取锁
-        boolean isLock = redisLock.tryLock();
-        // 4.判断是否获得锁成功
-        if (!isLock) {
-            // 获取锁失败，直接返回失败或者重试
-            log.error("不允许重复下单！");
+    /**
+     * 批量下单；按查询去重时先锁住批次内的所有用户，正常消费和恢复线程同时处理同一条消息时不会都通过查询而重复插入
+     * 唯一索引保证一人一单时不需要加锁
+     */
+    private void createVoucherOrderBatchLocked(List<VoucherOrder> voucherOrders) {
+        if (isDedupByUniqueIndex()) {
+            proxy.createVoucherOrderBatch(voucherOrders);
             return;
         }
+        //这里不能从ThreadLocal中获取用户id，使用订单中的用户id
+        RLock[] locks = voucherOrders.stream().map(VoucherOrder::getUserId).distinct()
+                .map(userId -> redissonClient.getLock("lock:order:" + userId)).toArray(RLock[]::new);
+        RLock redisLock = redissonClient.getMultiLock(locks);
+        if (!redisLock.tryLock()) {
+            //其他消费者正在处理这些用户的订单，消息留在pending-list中，由恢复线程稍后重试
+            throw new IllegalStateException("用户的订单正在处理中");
+        }
         try {
-            //注意：由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
-            proxy.createVoucherOrder(voucherOrder);
+            //锁在事务提交之后才释放
+            proxy.createVoucherOrderBatch(voucherOrders);
         } finally {
-            // 释放锁
             redisLock.unlock();
         }
     }
@@ -188,25 +507,144 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     //基于Redis stream消息队列实现秒杀优化
     @Override
     public Result seckillVoucher(Long voucherId) {
-        //获取用户id
+        long now = System.currentTimeMillis();
+        SeckillVoucherMetaCache.Meta meta = seckillVoucherMetaCache.get(voucherId);
+        Result rejected = rejectLocally(voucherId, meta, now);
+        if (rejected != null) {
+            return rejected;
+        }
+        //库存租用时先在本地扣减库存；redis中没有可租的库存时其他节点可能还持有租约，不广播售罄，
+        //没有节点持有租约时由SeckillStockLeases在本地标记售罄
+        int shards = seckillStockShards.shardsOf(voucherId);
+        boolean leased = shards <= 1 && seckillStockLeases.isEnabled();
+        if (leased && !seckillStockLeases.tryAcquire(voucherId)) {
+            return Result.fail(SECKILL_FAILURES[0]);
+        }
+        Result seckillResult = null;
+        try {
+            //获取用户id
+            Long userId = UserHolder.getUser().getId();
+
+            //获取订单id
+            long orderId = redisIdWorker.nextId("order");
+
+            //lua脚本没有通过KEYS传入key，单独记录库存key的访问
+            hotKeyDetector.record(SECKILL_STOCK_KEY + voucherId);
+            //执行lua脚本，下单消息写入对应的分区；库存分片的秒杀券使用分片脚本，消息写入用户所在分片对应的分区
+            String stream = orderStream(voucherId, userId);
+            String[] extraArgs = seckillExtraArgs(meta, now);
+            Long result;
+            if (shards > 1) {
+                result = seckillStockShards.seckill(voucherId, shards, userId, orderId, extraArgs);
+            } else {
+                result = stringRedisTemplate.execute(
+                        SECKILL_SCRIPT,
+                        Collections.emptyList(),//key为空
+                        seckillArgs(voucherId, userId, orderId, stream, extraArgs, leased).toArray()
+                );
+            }
+            seckillResult = toSeckillResult(voucherId, orderId, result);
+            return seckillResult;
+        } finally {
+            releaseLeasedStock(voucherId, leased, seckillResult);
+        }
+    }
+
+    /**
+     * 异步秒杀：生成id和执行lua脚本都通过lettuce的异步连接，等待redis时不占用tomcat线程，
+     * 同时进行的请求数受redis的处理能力限制，而不是servlet线程数
+     * 用户和订单id在请求线程上取得；之后的回调可能在lettuce的IO线程上执行，不能再同步访问redis
+     */
+    @Override
+    public CompletableFuture<Result> seckillVoucherAsync(Long voucherId) {
+        long now = System.currentTimeMillis();
+        SeckillVoucherMetaCache.Meta meta = seckillVoucherMetaCache.get(voucherId);
+        Result rejected = rejectLocally(voucherId, meta, now);
+        if (rejected != null) {
+            return CompletableFuture.completedFuture(rejected);
+        }
+        //分片数在请求线程上取得，回调中不再查询；租用库存时本地没有库存才异步地从redis租用下一段
+        int shards = seckillStockShards.shardsOf(voucherId);
+        boolean leased = shards <= 1 && seckillStockLeases.isEnabled();
         Long userId = UserHolder.getUser().getId();
+        hotKeyDetector.record(SECKILL_STOCK_KEY + voucherId);
+        String stream = orderStream(voucherId, userId);
+        String[] extraArgs = seckillExtraArgs(meta, now);
+        //号段模式下取id可能同步租用号段或等待预取，必须在请求线程上调用，不能放到租约完成后的IO线程回调中
+        CompletableFuture<Long> orderIdFuture = redisIdWorker.nextIdAsync("order");
+        CompletableFuture<Boolean> acquired = leased
+                ? seckillStockLeases.tryAcquireAsync(voucherId) : CompletableFuture.completedFuture(true);
+        return acquired.thenCompose(ok -> {
+            if (!ok) {
+                return CompletableFuture.completedFuture(Result.fail(SECKILL_FAILURES[0]));
+            }
+            return orderIdFuture.thenCompose(orderId -> {
+                CompletableFuture<Long> result = shards > 1
+                        ? seckillStockShards.seckillAsync(voucherId, shards, userId, orderId, extraArgs)
+                        : reactiveStringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(),
+                                seckillArgs(voucherId, userId, orderId, stream, extraArgs, leased)).next().toFuture();
+                return result.thenApply(r -> toSeckillResult(voucherId, orderId, r));
+            }).whenComplete((result, e) -> releaseLeasedStock(voucherId, leased, e == null ? result : null));
+        });
+    }
 
-        //获取订单id
-        long orderId = redisIdWorker.nextId("order");
+    /**
+     * 本地快照判断秒杀券是否存在、是否在秒杀时间内、是否已知售罄，这些请求不访问数据库和redis
+     * @return 需要拒绝时返回失败结果，否则返回null
+     */
+    private Result rejectLocally(Long voucherId, SeckillVoucherMetaCache.Meta meta, long now) {
+        if (meta == null) {
+            return Result.fail("秒杀券不存在");
+        }
+        if (meta.notStarted(now)) {
+            return Result.fail("秒杀尚未开始");
+        }
+        if (meta.ended(now)) {
+            return Result.fail("秒杀已经结束");
+        }
+        //本节点已知售罄，不再访问redis
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        return null;
+    }
 
-        //执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),//key为空
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
+    /**
+     * 两个秒杀脚本共同的参数：一人一单的去重结构和过期时间，以及当前时间，脚本中用当前时间原子地再检查一次秒杀时间
+     */
+    private String[] seckillExtraArgs(SeckillVoucherMetaCache.Meta meta, long now) {
+        String[] dedupArgs = seckillBuyerDedup.scriptArgs(meta.getEndTime());
+        return new String[]{dedupArgs[0], dedupArgs[1], dedupArgs[2], dedupArgs[3], String.valueOf(now)};
+    }
+
+    private List<String> seckillArgs(Long voucherId, Long userId, long orderId, String stream, String[] extraArgs,
+                                     boolean leased) {
+        List<String> args = new ArrayList<>(Arrays.asList(
+                voucherId.toString(), userId.toString(), String.valueOf(orderId), stream));
+        args.addAll(Arrays.asList(extraArgs));
+        args.add(leased ? "1" : "0");
+        return args;
+    }
+
+    /**
+     * 本地已经扣减了租用的库存，但没有下单成功（重复下单、不在秒杀时间内，或生成id、执行脚本时异常），把库存还给redis
+     */
+    private void releaseLeasedStock(Long voucherId, boolean leased, Result result) {
+        if (leased && (result == null || !Boolean.TRUE.equals(result.getSuccess()))) {
+            seckillStockLeases.release(voucherId);
+        }
+    }
+
+    private Result toSeckillResult(Long voucherId, long orderId, Long result) {
         int r = result.intValue();
+        if (r == 1) {
+            //库存不足，标记售罄并通知其他节点
+            soldOutRegistry.markSoldOut(voucherId);
+        }
         if (r != 0) {
-            //没有购买资格，库存不足或重复下单
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            //没有购买资格，库存不足、重复下单或不在秒杀时间内
+            return Result.fail(SECKILL_FAILURES[Math.min(r, SECKILL_FAILURES.length) - 1]);
         }
-        //获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         //返回订单id
         return Result.ok(orderId);
     }
@@ -245,6 +683,10 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
+        if (isDedupByUniqueIndex()) {
+            createVoucherOrdersIgnoringDuplicates(Collections.singletonList(voucherOrder));
+            return;
+        }
         // 5 一人一单
         Long userId = voucherOrder.getUserId();
         // 5.1 查询订单
@@ -252,6 +694,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         // 5.2 判断是否存在
         if (count > 0) {
             log.error("你已经购买过优惠券了~");
+            orderStatusNotifier.rejected(voucherOrder, "不能重复下单");
             return;
         }
 
@@ -264,8 +707,149 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (success == false) {
             // 库存不足
             log.error("库存不足");
+            orderStatusNotifier.rejected(voucherOrder, "库存不足");
             return;
         }
         save(voucherOrder);
+        orderStatusNotifier.created(Collections.singletonList(voucherOrder));
+    }
+
+    /**
+     * 批量下单：一次查询过滤已下过单的用户，按优惠券分组一次扣减库存，一条insert插入所有订单
+     * lua脚本已经保证了库存和一人一单，这里主要防止消息重复投递
+     */
+    @Transactional
+    public void createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        if (isDedupByUniqueIndex()) {
+            createVoucherOrdersIgnoringDuplicates(voucherOrders);
+            return;
+        }
+        // 1 一人一单：过滤批次内重复和数据库中已存在的订单
+        Set<Long> userIds = new HashSet<>();
+        Set<Long> voucherIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            userIds.add(voucherOrder.getUserId());
+            voucherIds.add(voucherOrder.getVoucherId());
+        }
+        Set<String> ordered = new HashSet<>();
+        query().select("user_id", "voucher_id")
+                .in("voucher_id", voucherIds).in("user_id", userIds).list()
+                .forEach(order -> ordered.add(order.getUserId() + ":" + order.getVoucherId()));
+        Map<Long, List<VoucherOrder>> byVoucher = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (!ordered.add(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId())) {
+                log.error("用户已经购买过优惠券, userId = {}, voucherId = {}",
+                        voucherOrder.getUserId(), voucherOrder.getVoucherId());
+                orderStatusNotifier.rejected(voucherOrder, "不能重复下单");
+                continue;
+            }
+            byVoucher.computeIfAbsent(voucherOrder.getVoucherId(), id -> new ArrayList<>()).add(voucherOrder);
+        }
+
+        // 2 按优惠券分组扣减库存 set stock = stock - k where voucher_id = ? and stock >= k
+        List<VoucherOrder> toInsert = new ArrayList<>(voucherOrders.size());
+        byVoucher.forEach((voucherId, orders) -> {
+            int k = orders.size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", voucherId).ge("stock", k)
+                    .update();
+            if (success) {
+                toInsert.addAll(orders);
+                return;
+            }
+            // 库存不够整批扣减，逐个扣减，能扣几个下几单
+            boolean soldOut = false;
+            for (VoucherOrder voucherOrder : orders) {
+                if (!soldOut) {
+                    soldOut = !seckillVoucherService.update()
+                            .setSql("stock = stock - 1")
+                            .eq("voucher_id", voucherId).gt("stock", 0)
+                            .update();
+                    if (soldOut) {
+                        log.error("库存不足, voucherId = {}", voucherId);
+                    }
+                }
+                if (soldOut) {
+                    orderStatusNotifier.rejected(voucherOrder, "库存不足");
+                } else {
+                    toInsert.add(voucherOrder);
+                }
+            }
+        });
+
+        // 3 批量插入订单
+        if (!toInsert.isEmpty()) {
+            getBaseMapper().insertBatch(toInsert);
+            orderStatusNotifier.created(toInsert);
+        }
+    }
+
+    /**
+     * 依赖(user_id, voucher_id)唯一索引的幂等下单：按优惠券分组INSERT IGNORE，按实际插入的行数扣减库存，
+     * 重复投递的消息插入0行，不扣库存；不需要先查询订单表，也不需要按用户加锁
+     * 批量下单库存不足时抛出异常回滚整批，由调用方逐条重试；单条下单库存不足时回滚插入的订单
+     */
+    private void createVoucherOrdersIgnoringDuplicates(List<VoucherOrder> voucherOrders) {
+        Map<Long, List<VoucherOrder>> byVoucher = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            byVoucher.computeIfAbsent(voucherOrder.getVoucherId(), id -> new ArrayList<>()).add(voucherOrder);
+        }
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+            int inserted = getBaseMapper().insertIgnoreBatch(orders);
+            List<VoucherOrder> created = orders;
+            if (inserted < orders.size()) {
+                log.error("用户已经购买过优惠券, voucherId = {}, 跳过{}个订单", voucherId, orders.size() - inserted);
+                // 按主键区分重复投递的订单（已入库）和重复下单的用户
+                created = createdOf(orders);
+            }
+            if (inserted == 0) {
+                orderStatusNotifier.created(created);
+                continue;
+            }
+            // set stock = stock - inserted where voucher_id = ? and stock >= inserted
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", voucherId).ge("stock", inserted)
+                    .update();
+            if (success) {
+                orderStatusNotifier.created(created);
+                continue;
+            }
+            if (voucherOrders.size() > 1) {
+                throw new IllegalStateException("库存不足, voucherId = " + voucherId);
+            }
+            log.error("库存不足, voucherId = {}", voucherId);
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            // 事务回滚，不会执行提交后的通知，直接写入结果
+            orderStatusNotifier.publish(orders, OrderStatusNotifier.REJECTED, "库存不足");
+        }
+    }
+
+    /**
+     * 已入库的订单（包括本事务插入的），其余的订单因重复下单被拒绝
+     */
+    private List<VoucherOrder> createdOf(List<VoucherOrder> orders) {
+        List<Long> ids = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
+            ids.add(order.getId());
+        }
+        Set<Long> existing = new HashSet<>();
+        query().select("id").in("id", ids).list().forEach(order -> existing.add(order.getId()));
+        List<VoucherOrder> created = new ArrayList<>(existing.size());
+        for (VoucherOrder order : orders) {
+            if (existing.contains(order.getId())) {
+                created.add(order);
+            } else {
+                orderStatusNotifier.rejected(order, "不能重复下单");
+            }
+        }
+        return created;
+    }
+
+    private boolean isDedupByUniqueIndex() {
+        return "unique-index".equals(dedupBy);
     }
 }
@@ -7,15 +7,18 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillVoucherMetaCache;
+import com.hmdp.utils.SoldOutRegistry;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * <p>
  *  服务实现类
@@ -33,6 +36,15 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillVoucherMetaCache seckillVoucherMetaCache;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -53,10 +65,36 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //将秒杀券的库存信息保存到redis
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(),
-                voucher.getStock().toString());
+        //将秒杀券的库存信息保存到redis，库存较大时拆分到多个分片
+        seckillStockShards.init(voucher.getId(), voucher.getStock());
+        //秒杀时间写入redis和本地快照，秒杀时不再查询数据库
+        seckillVoucherMetaCache.put(seckillVoucher);
+        soldOutRegistry.clear(voucher.getId());
+    }
 
+    @Override
+    @Transactional
+    public Result restockSeckillVoucher(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充的库存必须大于0");
+        }
+        // 补充数据库库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在");
+        }
+        // 事务提交后再补充redis库存，清除所有节点的售罄标记，回滚时redis不会多出库存
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                seckillStockShards.add(voucherId, count);
+                soldOutRegistry.clear(voucherId);
+            }
+        });
+        return Result.ok();
     }
 
 
@@ -0,0 +1,77 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 紧凑二进制编解码
+ * 格式：1字节魔数 + 1字节版本 + 8字节逻辑过期时间（毫秒时间戳，普通缓存为0） + Smile编码的业务对象
+ * 逻辑过期时间直接从头部8个字节读取；命中时只反序列化一次，直接得到目标类型
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+public class BinaryCacheCodec implements CacheCodec {
+    private static final byte MAGIC = (byte) 0xCB;
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 10;
+
+    private final ObjectMapper mapper = new ObjectMapper(new SmileFactory())
+            .registerModule(new JavaTimeModule())
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**
+     * 是否是本编解码器写入的数据，JSON数据不会以魔数开头
+     */
+    public boolean isEncoded(byte[] bytes) {
+        return bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return encodeWithLogicalExpire(value, 0);
+    }
+
+    @Override
+    public byte[] encodeWithLogicalExpire(Object value, long expireMillis) {
+        byte[] payload;
+        try {
+            payload = mapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存数据序列化失败", e);
+        }
+        return ByteBuffer.allocate(HEADER_LENGTH + payload.length)
+                .put(MAGIC)
+                .put(VERSION)
+                .putLong(expireMillis)
+                .put(payload)
+                .array();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        try {
+            return mapper.readValue(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH, type);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存数据反序列化失败", e);
+        }
+    }
+
+    @Override
+    public <R> Expiring<R> decodeWithLogicalExpire(byte[] bytes, Class<R> type) {
+        return new Expiring<>(decode(bytes, type), readExpireMillis(bytes));
+    }
+
+    @Override
+    public long readExpireMillis(byte[] bytes) {
+        // 只读头部的8个字节，不解析Smile数据
+        return ByteBuffer.wrap(bytes, 2, 8).getLong();
+    }
+}
@@ -0,0 +1,237 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+
+/**
+ * 布隆过滤器防止缓存穿透
+ * 查询redis和数据库之前先判断id是否可能存在，一定不存在的id直接返回，不再写入空值，也不会查询数据库
+ * 启动时按主键分页流式扫描数据表初始化，新增数据时增量添加；布隆过滤器不支持删除，定时在后台重建
+ * 过滤器还没初始化完成时一律放行；过滤器key丢失（FLUSHDB、淘汰、主从切换）时也放行，并在后台重建
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Slf4j
+@Component
+public class BloomFilterGuard {
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+
+    private static final int SCAN_BATCH_SIZE = 1000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ShopMapper shopMapper;
+    private final BlogMapper blogMapper;
+
+    @Value("${hmdp.bloom.enabled:false}")
+    private boolean enabled;
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+    /**
+     * 误判率
+     */
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    private RedisBloomFilter bloomFilter;
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+    private final Map<String, Filter> filtersByKeyPrefix = new ConcurrentHashMap<>();
+
+    public BloomFilterGuard(StringRedisTemplate stringRedisTemplate, ShopMapper shopMapper, BlogMapper blogMapper) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.shopMapper = shopMapper;
+        this.blogMapper = blogMapper;
+    }
+
+    @PostConstruct
+    private void init() {
+        bloomFilter = new RedisBloomFilter(stringRedisTemplate, expectedInsertions, fpp);
+        register(SHOP, CACHE_SHOP_KEY, lastId -> shopMapper.selectList(new QueryWrapper<Shop>()
+                .select("id").gt("id", lastId).orderByAsc("id").last("limit " + SCAN_BATCH_SIZE))
+                .stream().map(Shop::getId).collect(Collectors.toList()));
+        register(BLOG, null, lastId -> blogMapper.selectList(new QueryWrapper<Blog>()
+                .select("id").gt("id", lastId).orderByAsc("id").last("limit " + SCAN_BATCH_SIZE))
+                .stream().map(Blog::getId).collect(Collectors.toList()));
+    }
+
+    private void register(String name, String keyPrefix, Function<Long, List<Long>> idPager) {
+        Filter filter = new Filter(name, bloomFilter.keyOf(name), idPager);
+        filters.put(name, filter);
+        if (keyPrefix != null) {
+            filtersByKeyPrefix.put(keyPrefix, filter);
+        }
+    }
+
+    /**
+     * 按过滤器名称判断id是否可能存在
+     */
+    public boolean mightContain(String name, Object id) {
+        return mightContain(filters.get(name), id);
+    }
+
+    /**
+     * 按缓存key前缀判断，没有对应过滤器的前缀一律放行
+     */
+    public boolean mightContainKey(String keyPrefix, Object id) {
+        return mightContain(filtersByKeyPrefix.get(keyPrefix), id);
+    }
+
+    private boolean mightContain(Filter filter, Object id) {
+        if (!enabled || filter == null || !filter.ready) {
+            return true;
+        }
+        Boolean contains = bloomFilter.mightContain(filter.key, String.valueOf(id));
+        if (contains == null) {
+            // 过滤器key丢失，放行并在后台重建
+            filter.ready = false;
+            initAsync(filter);
+            return true;
+        }
+        return contains;
+    }
+
+    /**
+     * 新增数据后增量添加
+     */
+    public void add(String name, Object id) {
+        Filter filter = filters.get(name);
+        if (!enabled || filter == null || id == null) {
+            return;
+        }
+        bloomFilter.add(filter.key, String.valueOf(id));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initFilters() {
+        if (!enabled) {
+            return;
+        }
+        filters.values().forEach(this::initAsync);
+    }
+
+    /**
+     * 在独立线程中初始化，不阻塞启动和请求，初始化完成前放行所有请求；同一个过滤器只有一个初始化线程
+     */
+    private void initAsync(Filter filter) {
+        if (!filter.initializing.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                // 其他节点可能正在初始化，等它完成即可
+                while (!exists(filter)) {
+                    rebuild(filter);
+                    if (!exists(filter)) {
+                        Thread.sleep(1000);
+                    }
+                }
+                filter.ready = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("初始化布隆过滤器失败, name = {}", filter.name, e);
+            } finally {
+                filter.initializing.set(false);
+            }
+        }, "bloom-filter-init-" + filter.name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 布隆过滤器不支持删除，定时重建以清除已删除的数据
+     */
+    @Scheduled(initialDelayString = "${hmdp.bloom.rebuild-interval:PT1H}",
+            fixedDelayString = "${hmdp.bloom.rebuild-interval:PT1H}")
+    public void rebuildAll() {
+        if (!enabled) {
+            return;
+        }
+        filters.forEach((name, filter) -> {
+            try {
+                rebuild(filter);
+                filter.ready = exists(filter);
+            } catch (Exception e) {
+                log.error("重建布隆过滤器失败, name = {}", name, e);
+            }
+        });
+    }
+
+    /**
+     * 在临时key中重建，完成后RENAME替换；临时key存在期间add同时写入临时key，
+     * 不会漏掉id小于扫描位置、提交较晚的数据；RENAME后再扫描一次大于最大id的部分，补上没有经过add写入的数据
+     * 用分布式锁保证同一时间只有一个节点重建
+     */
+    private void rebuild(Filter filter) {
+        String name = filter.name;
+        ILock lock = new SimpleRedisLock(":bloom:" + name, stringRedisTemplate);
+        if (!lock.tryLock(600)) {
+            return;
+        }
+        try {
+            String tmpKey = RedisBloomFilter.rebuildingKeyOf(filter.key);
+            stringRedisTemplate.delete(tmpKey);
+            // 先创建key，保证表为空时也能得到一个空的过滤器
+            stringRedisTemplate.opsForValue().setBit(tmpKey, 0, false);
+            long lastId = scan(tmpKey, filter.idPager, 0L);
+            stringRedisTemplate.rename(tmpKey, filter.key);
+            scan(filter.key, filter.idPager, lastId);
+            log.info("布隆过滤器重建完成, name = {}, maxId = {}", name, lastId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean exists(Filter filter) {
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(filter.key));
+    }
+
+    /**
+     * 按主键分页扫描，返回扫描到的最大id
+     */
+    private long scan(String key, Function<Long, List<Long>> idPager, long lastId) {
+        while (true) {
+            List<Long> ids = idPager.apply(lastId);
+            if (ids.isEmpty()) {
+                return lastId;
+            }
+            bloomFilter.addAll(key, ids.stream().map(String::valueOf).collect(Collectors.toList()));
+            lastId = ids.get(ids.size() - 1);
+        }
+    }
+
+    private static class Filter {
+        private final String name;
+        private final String key;
+        private final Function<Long, List<Long>> idPager;
+        private final AtomicBoolean initializing = new AtomicBoolean();
+        private volatile boolean ready;
+
+        Filter(String name, String key, Function<Long, List<Long>> idPager) {
+            this.name = name;
+            this.key = key;
+            this.idPager = idPager;
+        }
+    }
+}
@@ -1,32 +1,83 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
 /**
+ * 每个缓存key对应一个版本号key，数据更新（事务提交后）时版本号自增；
+ * 重建缓存前先读取版本号，再按版本号写入（cache_cas_set.lua），期间数据被更新过则放弃写入，
+ * 避免重建线程把更新前读到的旧数据写回缓存
+ *
  * @author hyh
  * @date 2024/4/13
  */
 @Slf4j
 @Component
 public class CacheClient {
+    /**
+     * 空值标记，用于解决缓存穿透
+     */
+    private static final byte[] NULL_VALUE = new byte[0];
+
+    private static final DefaultRedisScript<Long> CAS_SET_SCRIPT;
+
+    static {
+        CAS_SET_SCRIPT = new DefaultRedisScript<>();
+        CAS_SET_SCRIPT.setLocation(new ClassPathResource("cache_cas_set.lua"));
+        CAS_SET_SCRIPT.setResultType(Long.class);
+    }
+
     private final StringRedisTemplate stringRedisTemplate;
+    private final RedisTemplate<String, byte[]> cacheRedisTemplate;
+    private final CacheCodec codec;
+    private final NearCache nearCache;
+    private final BloomFilterGuard bloomFilterGuard;
+    private final RefreshAheadScheduler refreshAheadScheduler;
+    private final CacheRebuildExecutor rebuildExecutor;
+    private final HotKeyDetector hotKeyDetector;
+    /**
+     * 同一节点上相同key的并发未命中共享同一次加载
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
+    /**
+     * 本节点正在尝试重建的逻辑过期key，保证每个节点对同一个key只发出一次分布式锁请求
+     */
+    private final Set<String> rebuildingKeys = ConcurrentHashMap.newKeySet();
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       RedisTemplate<String, byte[]> cacheRedisTemplate,
+                       CacheCodec codec,
+                       NearCache nearCache,
+                       BloomFilterGuard bloomFilterGuard,
+                       RefreshAheadScheduler refreshAheadScheduler,
+                       CacheRebuildExecutor rebuildExecutor,
+                       HotKeyDetector hotKeyDetector) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheRedisTemplate = cacheRedisTemplate;
+        this.codec = codec;
+        this.nearCache = nearCache;
+        this.bloomFilterGuard = bloomFilterGuard;
+        this.refreshAheadScheduler = refreshAheadScheduler;
+        this.rebuildExecutor = rebuildExecutor;
+        this.hotKeyDetector = hotKeyDetector;
     }
 
     /**
@@ -37,7 +88,7 @@ public class CacheClient {
      * @param timeUnit
      */
     public void set(String key, Object value, Long time, TimeUnit timeUnit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+        cacheRedisTemplate.opsForValue().set(key, codec.encode(value), time, timeUnit);
     }
 
     /**
@@ -49,11 +100,139 @@ public class CacheClient {
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit timeUnit) {
         //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
+        long expireMillis = System.currentTimeMillis() + timeUnit.toMillis(time);
         //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        cacheRedisTemplate.opsForValue().set(key, codec.encodeWithLogicalExpire(value, expireMillis));
+    }
+
+    /**
+     * 批量设置逻辑过期类型的缓存数据，一次pipeline写入
+     * 调用方无法在查询数据库之前拿到版本号，只写入没有版本号的key，有版本号说明已经由更新或重建按版本写入
+     * @param values key到缓存对象的映射
+     * @param time
+     * @param timeUnit
+     */
+    public void setBatchWithLogicalExpire(Map<String, ?> values, Long time, TimeUnit timeUnit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        long expireMillis = System.currentTimeMillis() + timeUnit.toMillis(time);
+        byte[] script = CAS_SET_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((key, value) -> connection.scriptingCommands().eval(script, ReturnType.INTEGER, 2,
+                    casArgs(key, 0L, codec.encodeWithLogicalExpire(value, expireMillis), 0L)));
+            return null;
+        });
+    }
+
+    /**
+     * 删除缓存，同时清除所有节点的本地缓存
+     * 版本号自增，正在进行的重建不能再写回旧数据；在事务中调用时，事务提交后才执行
+     * @param key
+     */
+    public void delete(String key) {
+        afterCommit(() -> {
+            incrementVersion(key);
+            cacheRedisTemplate.delete(key);
+            nearCache.invalidate(key);
+        });
+    }
+
+    /**
+     * 更新后直接写入新数据（write-through），热点数据更新后不会出现缓存未命中
+     * 在事务中调用时，事务提交后才自增版本号、重新查询并按新版本号写入，并发的多次更新只有最后一次能写入成功
+     * @param key
+     * @param loader 查询最新数据，返回null时删除缓存
+     * @param time
+     * @param timeUnit
+     */
+    public void writeThroughWithLogicalExpire(String key, Supplier<?> loader, Long time, TimeUnit timeUnit) {
+        afterCommit(() -> {
+            long version = incrementVersion(key);
+            Object value = loader.get();
+            if (value == null) {
+                cacheRedisTemplate.delete(key);
+            } else {
+                compareAndSetWithLogicalExpire(key, version, value, time, timeUnit);
+            }
+            nearCache.invalidate(key);
+        });
+    }
+
+    /**
+     * 读取缓存key当前的版本号，必须在查询数据库之前读取
+     * @param key
+     * @return 从未更新过的key版本号为0
+     */
+    public long currentVersion(String key) {
+        String version = stringRedisTemplate.opsForValue().get(CACHE_VERSION_KEY + key);
+        return version == null ? 0 : Long.parseLong(version);
+    }
+
+    /**
+     * 按版本号写入缓存
+     * @param key
+     * @param version 查询数据库之前读到的版本号
+     * @param value 序列化后的缓存值
+     * @param ttlMillis 过期时间，0表示不设置过期时间
+     * @return 版本号已变化（数据已被更新）时返回false，不写入
+     */
+    public boolean compareAndSet(String key, long version, byte[] value, long ttlMillis) {
+        byte[][] args = casArgs(key, version, value, ttlMillis);
+        Long result = cacheRedisTemplate.execute(CAS_SET_SCRIPT,
+                Arrays.asList(key, CACHE_VERSION_KEY + key), args[2], args[3], args[4]);
+        return result != null && result == 1L;
+    }
+
+    /**
+     * 按版本号写入逻辑过期类型的缓存，由编解码器序列化
+     * @param key
+     * @param version 查询数据库之前读到的版本号
+     * @param value 缓存对象
+     * @param time 逻辑过期时间
+     * @param timeUnit
+     * @return 版本号已变化（数据已被更新）时返回false，不写入
+     */
+    public boolean compareAndSetWithLogicalExpire(String key, long version, Object value, Long time, TimeUnit timeUnit) {
+        long expireMillis = System.currentTimeMillis() + timeUnit.toMillis(time);
+        return compareAndSet(key, version, codec.encodeWithLogicalExpire(value, expireMillis), 0);
+    }
+
+    /**
+     * cache_cas_set.lua的KEYS和ARGV，用于pipeline中直接eval
+     */
+    private static byte[][] casArgs(String key, long version, byte[] value, long ttlMillis) {
+        return new byte[][]{
+                key.getBytes(StandardCharsets.UTF_8),
+                (CACHE_VERSION_KEY + key).getBytes(StandardCharsets.UTF_8),
+                String.valueOf(version).getBytes(StandardCharsets.UTF_8),
+                value,
+                String.valueOf(ttlMillis).getBytes(StandardCharsets.UTF_8)
+        };
+    }
+
+    private long incrementVersion(String key) {
+        String versionKey = CACHE_VERSION_KEY + key;
+        Long version = stringRedisTemplate.opsForValue().increment(versionKey);
+        // 版本号只需要覆盖一次重建的时间窗口
+        stringRedisTemplate.expire(versionKey, CACHE_VERSION_TTL, TimeUnit.DAYS);
+        return version == null ? 0 : version;
+    }
+
+    /**
+     * 有事务时在事务提交后执行，避免其他线程在提交前读到旧数据并按新版本号写入缓存
+     */
+    private static void afterCommit(Runnable task) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            task.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                task.run();
+            }
+        });
     }
 
 
@@ -71,39 +250,224 @@ public class CacheClient {
                                           Function<ID, R> dbFallback,
                                           Long time, TimeUnit timeUnit) {
         String key = keyPrefix + id;
+        //本地缓存命中的访问也要计入热点统计
+        hotKeyDetector.record(key);
+        //0、先查本地缓存
+        NearCache.Entry entry = nearCache.get(keyPrefix, key);
+        if (entry != null && type.isInstance(entry.getValue())) {
+            return type.cast(entry.getValue());
+        }
+        //布隆过滤器判断一定不存在，直接返回
+        if (!bloomFilterGuard.mightContainKey(keyPrefix, id)) {
+            return null;
+        }
         //1、从redis中查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
 
         //2、判断是否存在
-        if (StrUtil.isNotBlank(json)) {
+        if (bytes != null && bytes.length > 0) {
             //3、存在，直接返回
             //反序列化
-            return JSONUtil.toBean(json, type);
+            R r = codec.decode(bytes, type);
+            nearCache.put(key, r, 0, bytes.length);
+            return r;
         }
-        //判断命中的是否是空字符串""  不等于null，则说明是之前缓存的""
-        if (json != null) {
+        //判断命中的是否是空值  不等于null，则说明是之前缓存的空值
+        if (bytes != null) {
             return null;
         }
 
-        //4、不存在，根据id查询数据库
+        //4、不存在，根据id查询数据库，同一节点的并发未命中只查询一次
+        return singleFlight.execute(key, () -> loadAndCache(key, id, dbFallback, time, timeUnit));
+    }
+
+    /**
+     * 互斥锁解决缓存击穿
+     * 同一节点上相同key的未命中先在本地合并，只有leader线程去抢分布式锁，其余线程挂起等待leader的结果，
+     * 不再每个线程都休眠、递归重试
+     *
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @param <R>
+     * @param <ID>
+     * @return
+     */
+    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type,
+                                    Function<ID, R> dbFallback,
+                                    Long time, TimeUnit timeUnit) {
+        String key = keyPrefix + id;
+        hotKeyDetector.record(key);
+        NearCache.Entry entry = nearCache.get(keyPrefix, key);
+        if (entry != null && type.isInstance(entry.getValue())) {
+            return type.cast(entry.getValue());
+        }
+        if (!bloomFilterGuard.mightContainKey(keyPrefix, id)) {
+            return null;
+        }
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        if (bytes != null && bytes.length > 0) {
+            R r = codec.decode(bytes, type);
+            nearCache.put(key, r, 0, bytes.length);
+            return r;
+        }
+        if (bytes != null) {
+            return null;
+        }
+        return singleFlight.execute(key, () -> {
+            String lockKey = LOCK_SHOP_KEY + id;
+            while (true) {
+                if (tryLock(lockKey)) {
+                    try {
+                        // doubleCheck，其他节点可能已经重建完成
+                        byte[] latest = cacheRedisTemplate.opsForValue().get(key);
+                        if (latest != null) {
+                            return latest.length > 0 ? codec.decode(latest, type) : null;
+                        }
+                        return loadAndCache(key, id, dbFallback, time, timeUnit);
+                    } finally {
+                        unlock(lockKey);
+                    }
+                }
+                // 其他节点正在重建，本节点只有leader线程在这里轮询
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                byte[] latest = cacheRedisTemplate.opsForValue().get(key);
+                if (latest != null) {
+                    return latest.length > 0 ? codec.decode(latest, type) : null;
+                }
+            }
+        });
+    }
+
+    /**
+     * 查询数据库并写入缓存，数据库中不存在时写入空值
+     */
+    private <R, ID> R loadAndCache(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+        //先读版本号再查数据库
+        long version = currentVersion(key);
         R r = dbFallback.apply(id);
 
-        //5、商铺不存在，返回错误 404
+        //数据不存在，返回错误 404
         if (r == null) {
-            //将空字符串写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            //将空值写入redis
+            compareAndSet(key, version, NULL_VALUE, TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL));
             //返回错误信息
             return null;
         }
-        //6、存在，写入redis
-        this.set(key, r, time, timeUnit);
-
-        //7、返回商铺信息
+        //存在，写入redis，期间数据被更新过则不写入
+        byte[] value = codec.encode(r);
+        if (compareAndSet(key, version, value, timeUnit.toMillis(time))) {
+            nearCache.put(key, r, 0, value.length);
+        }
         return r;
     }
 
+    /**
+     * 批量查询，解决缓存穿透，避免逐个查询带来的N+1问题
+     * 一次MGET读取缓存，未命中的id一次性交给dbFallback批量查询数据库，再用一次pipeline写回（包括空值）
+     *
+     * @param keyPrefix
+     * @param ids
+     * @param type
+     * @param dbFallback 根据id集合批量查询数据库，返回id到数据的映射，不存在的id不用放入
+     * @param <R>
+     * @param <ID>
+     * @return id到数据的映射，按ids的顺序排列，不存在的id不会出现在结果中
+     */
+    public <R, ID> Map<ID, R> queryBatchWithPassThrough(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                        Function<Collection<ID>, Map<ID, R>> dbFallback,
+                                                        Long time, TimeUnit timeUnit) {
+        Map<ID, R> result = new LinkedHashMap<>(ids.size());
+        //1、先查本地缓存
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            hotKeyDetector.record(keyPrefix + id);
+            NearCache.Entry entry = nearCache.get(keyPrefix, keyPrefix + id);
+            if (entry != null && type.isInstance(entry.getValue())) {
+                result.put(id, type.cast(entry.getValue()));
+            } else if (bloomFilterGuard.mightContainKey(keyPrefix, id)) {
+                remoteIds.add(id);
+            }
+        }
+        if (remoteIds.isEmpty()) {
+            return result;
+        }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+        //2、一次MGET查询redis，同时读取版本号
+        int size = remoteIds.size();
+        List<String> keys = new ArrayList<>(size * 2);
+        for (ID id : remoteIds) {
+            keys.add(keyPrefix + id);
+        }
+        for (ID id : remoteIds) {
+            keys.add(CACHE_VERSION_KEY + keyPrefix + id);
+        }
+        List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(keys);
+        List<ID> missIds = new ArrayList<>();
+        Map<ID, Long> versions = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            byte[] bytes = values == null ? null : values.get(i);
+            if (bytes == null) {
+                //未命中
+                byte[] version = values == null ? null : values.get(size + i);
+                missIds.add(remoteIds.get(i));
+                versions.put(remoteIds.get(i),
+                        version == null ? 0L : Long.parseLong(new String(version, StandardCharsets.UTF_8)));
+            } else if (bytes.length > 0) {
+                //命中，反序列化
+                R r = codec.decode(bytes, type);
+                nearCache.put(keys.get(i), r, 0, bytes.length);
+                result.put(remoteIds.get(i), r);
+            }
+            //命中空值，说明数据库中也不存在
+        }
+        if (missIds.isEmpty()) {
+            return result;
+        }
+
+        //3、未命中的id一次性查询数据库
+        Map<ID, R> dbValues = dbFallback.apply(missIds);
+        //4、一次pipeline按版本号写回redis，数据库不存在的写入空值
+        long ttlMillis = timeUnit.toMillis(time);
+        long nullTtlMillis = TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL);
+        byte[] script = CAS_SET_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        List<byte[]> encoded = new ArrayList<>(missIds.size());
+        for (ID id : missIds) {
+            R r = dbValues.get(id);
+            encoded.add(r == null ? NULL_VALUE : codec.encode(r));
+        }
+        List<Object> written = cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < missIds.size(); i++) {
+                ID id = missIds.get(i);
+                byte[] value = encoded.get(i);
+                connection.scriptingCommands().eval(script, ReturnType.INTEGER, 2,
+                        casArgs(keyPrefix + id, versions.get(id), value, value == NULL_VALUE ? nullTtlMillis : ttlMillis));
+            }
+            return null;
+        });
+        //写入成功的才放入本地缓存，版本号已变化的说明刚被更新过
+        for (int i = 0; i < missIds.size(); i++) {
+            R r = dbValues.get(missIds.get(i));
+            if (r != null && Long.valueOf(1L).equals(written.get(i))) {
+                nearCache.put(keyPrefix + missIds.get(i), r, 0, encoded.get(i).length);
+            }
+        }
+        //5、按ids的顺序返回
+        Map<ID, R> ordered = new LinkedHashMap<>(result.size() + dbValues.size());
+        for (ID id : ids) {
+            R r = result.containsKey(id) ? result.get(id) : dbValues.get(id);
+            if (r != null) {
+                ordered.put(id, r);
+            }
+        }
+        return ordered;
+    }
 
     /**
      * 逻辑过期解决缓存击穿
@@ -121,55 +485,118 @@ public class CacheClient {
                                             Function<ID, R> dbFallback,
                                             Long time, TimeUnit timeUnit) {
         String key = keyPrefix + id;
+        hotKeyDetector.record(key);
+        //0、本地缓存命中且未逻辑过期，直接返回
+        NearCache.Entry entry = nearCache.get(keyPrefix, key);
+        if (entry != null && !entry.isLogicalExpired() && type.isInstance(entry.getValue())) {
+            refreshAheadScheduler.onAccess(key, entry.getExpireMillis(),
+                    () -> refreshWithLogicalExpire(key, id, dbFallback, time, timeUnit));
+            return type.cast(entry.getValue());
+        }
+        if (!bloomFilterGuard.mightContainKey(keyPrefix, id)) {
+            return null;
+        }
         //1、从redis中查询缓存数据
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
 
         //2、判断是否存在
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length == 0) {
             //3、不存在，直接返回
             return null;
         }
 
-        // 4 命中，需要先把json反序列化
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-//        JSONObject data = (JSONObject) redisData.getData();
-//        Shop shop = JSONUtil.toBean(data, type);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        // 4 命中，先只读取逻辑过期时间；和本地缓存中已过期的是同一份数据时直接复用，不再反序列化
+        long expireMillis = codec.readExpireMillis(bytes);
+        R r = entry != null && entry.getExpireMillis() == expireMillis && type.isInstance(entry.getValue())
+                ? type.cast(entry.getValue()) : codec.decodeWithLogicalExpire(bytes, type).getValue();
         // 5 判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 5.1 未过期，直接返回缓存数据
+        if (expireMillis > System.currentTimeMillis()) {
+            // 5.1 未过期，放入本地缓存并直接返回缓存数据，热点key会被提前刷新
+            nearCache.put(key, r, expireMillis, bytes.length);
+            refreshAheadScheduler.onAccess(key, expireMillis,
+                    () -> refreshWithLogicalExpire(key, id, dbFallback, time, timeUnit));
             return r;
         }
+        refreshAheadScheduler.onStale(System.currentTimeMillis() - expireMillis);
 
         //5.2 已过期，需要缓存重建
+        // 本节点已有线程在重建，直接返回旧数据，不再发出锁请求
+        if (!rebuildingKeys.add(key)) {
+            return r;
+        }
         //6 缓存重建
         // 6.1 获取互斥锁
         String lockKey = LOCK_SHOP_KEY + id;
         boolean isLock = tryLock(lockKey);
         // 6.2 判断是否获取锁成功
-        if (isLock) {
-            // todo 获取锁成功应该再次检测redis缓存是否过期，做doubleCheck
-            // 6.3 成功，开启独立线程实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try {
-                    //查数据库
-                    R r1 = dbFallback.apply(id);
-                    //写redis
-                    this.setWithLogicalExpire(key, r1, time, timeUnit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    //释放锁
-                    unlock(lockKey);
-                }
-            });
+        if (!isLock) {
+            rebuildingKeys.remove(key);
+            return r;
+        }
+        // doubleCheck：其他线程可能刚重建完
+        byte[] latestBytes = cacheRedisTemplate.opsForValue().get(key);
+        // 只读取过期时间，仍然过期时不需要反序列化
+        if (latestBytes != null && latestBytes.length > 0
+                && codec.readExpireMillis(latestBytes) > System.currentTimeMillis()) {
+            unlock(lockKey);
+            rebuildingKeys.remove(key);
+            return codec.decodeWithLogicalExpire(latestBytes, type).getValue();
+        }
+        // 6.3 成功，交给重建线程池实现缓存重建
+        boolean submitted = rebuildExecutor.submit(key, () -> {
+            try {
+                //查数据库，写redis
+                rebuildWithLogicalExpire(key, id, dbFallback, time, timeUnit);
+            } finally {
+                //释放锁
+                unlock(lockKey);
+                rebuildingKeys.remove(key);
+            }
+        });
+        if (!submitted) {
+            //队列已满或已在重建，释放锁，继续返回旧数据
+            unlock(lockKey);
+            rebuildingKeys.remove(key);
         }
 
-        //6.4 返回过期的旧数据（不管获取锁成功失败与否）
+        //6.4 返回过期的旧数据
         return r;
     }
 
+    /**
+     * 获取锁并重建逻辑过期缓存，用于提前刷新
+     * @return 新的逻辑过期时间，其他节点正在重建时返回0
+     */
+    private <R, ID> long refreshWithLogicalExpire(String key, ID id, Function<ID, R> dbFallback,
+                                                  Long time, TimeUnit timeUnit) {
+        String lockKey = LOCK_SHOP_KEY + id;
+        if (!tryLock(lockKey)) {
+            return 0;
+        }
+        try {
+            return rebuildWithLogicalExpire(key, id, dbFallback, time, timeUnit);
+        } finally {
+            unlock(lockKey);
+        }
+    }
+
+    /**
+     * 查询数据库并按版本号写入逻辑过期缓存，同时更新本节点的本地缓存
+     * @return 新的逻辑过期时间，期间数据被更新过（缓存已由更新方写入）返回0
+     */
+    private <R, ID> long rebuildWithLogicalExpire(String key, ID id, Function<ID, R> dbFallback,
+                                                  Long time, TimeUnit timeUnit) {
+        long version = currentVersion(key);
+        R r = dbFallback.apply(id);
+        long expireMillis = System.currentTimeMillis() + timeUnit.toMillis(time);
+        byte[] value = codec.encodeWithLogicalExpire(r, expireMillis);
+        if (!compareAndSet(key, version, value, 0)) {
+            return 0;
+        }
+        nearCache.put(key, r, expireMillis, value.length);
+        return expireMillis;
+    }
+
     private boolean tryLock(String key) {
         //设置的有效期比实际业务的执行时间长一点
         Boolean flag = stringRedisTemplate.opsForValue()
@@ -0,0 +1,57 @@
+package com.hmdp.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * CacheClient使用的缓存值编解码器
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码普通缓存数据
+     * @param value 缓存对象
+     * @return 写入redis的字节
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 编码逻辑过期类型的缓存数据
+     * @param value 缓存对象
+     * @param expireMillis 逻辑过期时间（毫秒时间戳）
+     * @return 写入redis的字节
+     */
+    byte[] encodeWithLogicalExpire(Object value, long expireMillis);
+
+    /**
+     * 解码普通缓存数据
+     */
+    <R> R decode(byte[] bytes, Class<R> type);
+
+    /**
+     * 解码逻辑过期类型的缓存数据，一次解码同时得到业务对象和逻辑过期时间
+     */
+    <R> Expiring<R> decodeWithLogicalExpire(byte[] bytes, Class<R> type);
+
+    /**
+     * 只读取逻辑过期类型缓存数据的过期时间，不反序列化业务对象
+     * @return 逻辑过期时间（毫秒时间戳）
+     */
+    long readExpireMillis(byte[] bytes);
+
+    /**
+     * 逻辑过期类型缓存数据的解码结果
+     */
+    @Getter
+    @AllArgsConstructor
+    final class Expiring<R> {
+        private final R value;
+        /**
+         * 逻辑过期时间（毫秒时间戳）
+         */
+        private final long expireMillis;
+    }
+}
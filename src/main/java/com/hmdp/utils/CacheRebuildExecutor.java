@@ -0,0 +1,110 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 全局共用的缓存重建线程池
+ * 有界队列；同一个key在队列中或正在执行时不会重复提交；队列满时拒绝，调用方继续返回旧数据；
+ * 重建任务的异常会记录日志和失败次数，不会被Future吞掉；应用关闭时等待正在执行的任务完成
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int threads;
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+    @Value("${hmdp.cache.rebuild.shutdown-timeout:10s}")
+    private Duration shutdownTimeout;
+
+    private ThreadPoolExecutor executor;
+    /**
+     * 已在队列中或正在重建的key
+     */
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+
+    private Counter failedCounter;
+    private Counter rejectedCounter;
+    private Counter duplicateCounter;
+    private Timer rebuildTimer;
+
+    public CacheRebuildExecutor(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> new Thread(r, "cache-rebuild-" + index.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+        failedCounter = meterRegistry.counter("cache.rebuild.failures");
+        rejectedCounter = meterRegistry.counter("cache.rebuild.rejected");
+        duplicateCounter = meterRegistry.counter("cache.rebuild.duplicates");
+        rebuildTimer = meterRegistry.timer("cache.rebuild.duration");
+        meterRegistry.gauge("cache.rebuild.queue", executor.getQueue(), BlockingQueue::size);
+        meterRegistry.gauge("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount);
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存key，用于去重
+     * @param task 重建任务
+     * @return 是否提交成功，false表示该key已在重建或队列已满，调用方应释放自己持有的锁并返回旧数据
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!pendingKeys.add(key)) {
+            duplicateCounter.increment();
+            return false;
+        }
+        try {
+            executor.execute(() -> run(key, task));
+            return true;
+        } catch (RejectedExecutionException e) {
+            pendingKeys.remove(key);
+            rejectedCounter.increment();
+            log.warn("缓存重建队列已满，继续返回旧数据, key = {}", key);
+            return false;
+        }
+    }
+
+    private void run(String key, Runnable task) {
+        long begin = System.nanoTime();
+        try {
+            task.run();
+        } catch (Exception e) {
+            failedCounter.increment();
+            log.error("缓存重建失败, key = {}", key, e);
+        } finally {
+            pendingKeys.remove(key);
+            rebuildTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(shutdownTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            log.warn("缓存重建任务未在{}内完成，强制关闭", shutdownTimeout);
+            executor.shutdownNow();
+        }
+    }
+}
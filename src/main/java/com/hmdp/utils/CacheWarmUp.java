@@ -0,0 +1,212 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IShopTypeService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 启动时预热缓存
+ * 应用启动完成后按主键分页流式读取tb_shop、tb_shop_type、tb_seckill_voucher，用pipeline批量写入redis：
+ * 店铺逻辑过期缓存、按类型分组的店铺GEO、店铺类型列表、秒杀券时间、秒杀库存（库存只在不存在时写入，不会覆盖正在进行的秒杀）
+ * 预热完成前readiness健康检查为OUT_OF_SERVICE，只有预热完成后实例才接收流量
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Slf4j
+@Component("cacheWarmUp")
+public class CacheWarmUp implements HealthIndicator {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final CacheClient cacheClient;
+    private final ShopMapper shopMapper;
+    private final SeckillVoucherMapper seckillVoucherMapper;
+    private final IShopTypeService shopTypeService;
+    private final SeckillStockShards seckillStockShards;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hmdp.warmup.enabled:false}")
+    private boolean enabled;
+    @Value("${hmdp.warmup.page-size:500}")
+    private int pageSize;
+    /**
+     * 同时写入redis的分页数
+     */
+    @Value("${hmdp.warmup.parallelism:4}")
+    private int parallelism;
+
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile String error;
+
+    public CacheWarmUp(StringRedisTemplate stringRedisTemplate, CacheClient cacheClient,
+                       ShopMapper shopMapper, SeckillVoucherMapper seckillVoucherMapper,
+                       IShopTypeService shopTypeService, SeckillStockShards seckillStockShards,
+                       MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheClient = cacheClient;
+        this.shopMapper = shopMapper;
+        this.seckillVoucherMapper = seckillVoucherMapper;
+        this.shopTypeService = shopTypeService;
+        this.seckillStockShards = seckillStockShards;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public Health health() {
+        if (!enabled) {
+            return Health.up().build();
+        }
+        if (!finished.get()) {
+            return Health.outOfService().withDetail("warmUp", "running").build();
+        }
+        // 预热失败也放行，缓存未命中时会回源数据库
+        return error == null ? Health.up().build() : Health.up().withDetail("warmUp", error).build();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (!enabled) {
+            return;
+        }
+        Thread thread = new Thread(this::run, "cache-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        long begin = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            warmUpShops(executor);
+            warmUpSeckillStock(executor);
+            // 店铺类型数据量很小，整体缓存为一个列表，直接复用查询方法写入
+            shopTypeService.queryTypeList();
+            log.info("缓存预热完成，耗时{}ms", System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            error = e.getMessage();
+            log.error("缓存预热失败", e);
+        } finally {
+            executor.shutdown();
+            finished.set(true);
+        }
+    }
+
+    private void warmUpShops(ExecutorService executor) throws InterruptedException, ExecutionException {
+        Counter counter = meterRegistry.counter("cache.warmup.rows", "table", "tb_shop");
+        scan(executor, lastId -> shopMapper.selectList(new QueryWrapper<Shop>()
+                        .gt("id", lastId).orderByAsc("id").last("limit " + pageSize)),
+                Shop::getId,
+                shops -> {
+                    // 店铺逻辑过期缓存
+                    Map<String, Shop> values = new HashMap<>(shops.size());
+                    for (Shop shop : shops) {
+                        values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+                    }
+                    cacheClient.setBatchWithLogicalExpire(values, CACHE_SHOP_TTL, TimeUnit.SECONDS);
+                    // 按类型分组写入GEO
+                    Map<Long, List<Shop>> byType = shops.stream()
+                            .filter(shop -> shop.getX() != null && shop.getY() != null)
+                            .collect(Collectors.groupingBy(Shop::getTypeId));
+                    stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+                        @Override
+                        @SuppressWarnings("unchecked")
+                        public Object execute(RedisOperations operations) throws DataAccessException {
+                            byType.forEach((typeId, list) -> operations.opsForGeo().add(SHOP_GEO_KEY + typeId,
+                                    list.stream().map(shop -> new RedisGeoCommands.GeoLocation<>(
+                                            shop.getId().toString(), new Point(shop.getX(), shop.getY())))
+                                            .collect(Collectors.toList())));
+                            return null;
+                        }
+                    });
+                    counter.increment(shops.size());
+                });
+    }
+
+    private void warmUpSeckillStock(ExecutorService executor) throws InterruptedException, ExecutionException {
+        Counter counter = meterRegistry.counter("cache.warmup.rows", "table", "tb_seckill_voucher");
+        LocalDateTime now = LocalDateTime.now();
+        scan(executor, lastId -> seckillVoucherMapper.selectList(new QueryWrapper<SeckillVoucher>()
+                        .gt("voucher_id", lastId).gt("end_time", now)
+                        .orderByAsc("voucher_id").last("limit " + pageSize)),
+                SeckillVoucher::getVoucherId,
+                vouchers -> {
+                    // 库存分片的秒杀券不使用单个库存key
+                    Set<Long> sharded = seckillStockShards.shardedOf(vouchers.stream()
+                            .map(SeckillVoucher::getVoucherId).collect(Collectors.toList()));
+                    // 只在不存在时写入，redis中的库存比数据库新
+                    stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+                        @Override
+                        @SuppressWarnings("unchecked")
+                        public Object execute(RedisOperations operations) throws DataAccessException {
+                            for (SeckillVoucher voucher : vouchers) {
+                                // 秒杀时间以数据库为准
+                                operations.opsForHash().putAll(SECKILL_VOUCHER_KEY + voucher.getVoucherId(),
+                                        SeckillVoucherMetaCache.toHash(voucher));
+                                if (sharded.contains(voucher.getVoucherId())) {
+                                    continue;
+                                }
+                                operations.opsForValue().setIfAbsent(SECKILL_STOCK_KEY + voucher.getVoucherId(),
+                                        voucher.getStock().toString());
+                            }
+                            return null;
+                        }
+                    });
+                    counter.increment(vouchers.size());
+                });
+    }
+
+    /**
+     * 按主键分页读取（keyset分页，不用offset），每页交给线程池写入，最多parallelism页同时写入
+     */
+    private <T> void scan(ExecutorService executor, Function<Long, List<T>> pager, Function<T, Long> idGetter,
+                          Consumer<List<T>> writer) throws InterruptedException, ExecutionException {
+        Semaphore permits = new Semaphore(parallelism);
+        List<Future<?>> futures = new ArrayList<>();
+        long lastId = 0;
+        while (true) {
+            List<T> page = pager.apply(lastId);
+            if (page.isEmpty()) {
+                break;
+            }
+            lastId = idGetter.apply(page.get(page.size() - 1));
+            permits.acquire();
+            futures.add(executor.submit(() -> {
+                try {
+                    writer.accept(page);
+                } finally {
+                    permits.release();
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+}
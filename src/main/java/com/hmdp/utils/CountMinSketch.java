@@ -0,0 +1,40 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-Min Sketch，用固定内存估计每个key的访问次数，估计值只会偏大不会偏小
+ * depth行计数器，每行的位置用两个64位哈希组合生成（与RedisBloomFilter相同），无锁并发累加
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+public class CountMinSketch {
+    private final int depth;
+    private final int width;
+    private final AtomicLongArray counters;
+
+    public CountMinSketch(int depth, int width) {
+        this.depth = depth;
+        this.width = width;
+        this.counters = new AtomicLongArray(depth * width);
+    }
+
+    /**
+     * 计数加一
+     * @return 加一之后的估计值
+     */
+    public long add(String key) {
+        long[] hash = MurmurHash.hash128(key);
+        long combined = hash[0];
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int index = i * width + (int) ((combined & Long.MAX_VALUE) % width);
+            min = Math.min(min, counters.incrementAndGet(index));
+            combined += hash[1];
+        }
+        return min;
+    }
+}
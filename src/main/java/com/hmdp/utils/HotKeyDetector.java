@@ -0,0 +1,207 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * 热点key探测
+ * 由CacheClient的查询入口、秒杀入口和博客点赞按采样率记录key的访问，每个时间窗口用Count-Min Sketch估计访问次数，
+ * 再用小顶堆维护访问最多的K个key；窗口结束时访问次数达到阈值的key视为热点key，新成为热点的key会发布HotKeyEvent
+ * 具体的key只通过/actuator/hotkeys查看，hotkey.accesses指标按排名打标签，指标的序列数不超过topK
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+    private final MeterRegistry meterRegistry;
+    private final ApplicationEventPublisher eventPublisher;
+
+    @Value("${hmdp.hotkey.enabled:false}")
+    private boolean enabled;
+    /**
+     * 采样率，1表示记录每一次访问
+     */
+    @Value("${hmdp.hotkey.sample-rate:1.0}")
+    private double sampleRate;
+    @Value("${hmdp.hotkey.top-k:20}")
+    private int topK;
+    /**
+     * 一个窗口内的访问次数达到该值即为热点key
+     */
+    @Value("${hmdp.hotkey.hot-threshold:1000}")
+    private long hotThreshold;
+    @Value("${hmdp.hotkey.sketch-depth:4}")
+    private int sketchDepth;
+    @Value("${hmdp.hotkey.sketch-width:2048}")
+    private int sketchWidth;
+
+    private volatile Window current;
+    private volatile List<HotKey> lastWindowTop = Collections.emptyList();
+    private volatile Set<String> hotKeys = Collections.emptySet();
+
+    private MultiGauge topGauge;
+    private Counter hotKeyCounter;
+
+    public HotKeyDetector(MeterRegistry meterRegistry, ApplicationEventPublisher eventPublisher) {
+        this.meterRegistry = meterRegistry;
+        this.eventPublisher = eventPublisher;
+    }
+
+    @PostConstruct
+    private void init() {
+        current = new Window();
+        topGauge = MultiGauge.builder("hotkey.accesses")
+                .description("上一个窗口访问次数第rank名的key的估计访问次数")
+                .register(meterRegistry);
+        hotKeyCounter = meterRegistry.counter("hotkey.detected");
+        meterRegistry.gauge("hotkey.hot", this, d -> d.hotKeys.size());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 记录一次key访问
+     */
+    public void record(String key) {
+        if (!enabled || key == null) {
+            return;
+        }
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        current.add(key);
+    }
+
+    /**
+     * 上一个窗口结束时是否为热点key
+     */
+    public boolean isHot(String key) {
+        return hotKeys.contains(key);
+    }
+
+    /**
+     * 当前窗口到目前为止访问最多的key
+     */
+    public List<HotKey> currentTop() {
+        return current.top();
+    }
+
+    /**
+     * 上一个完整窗口访问最多的key
+     */
+    public List<HotKey> lastWindowTop() {
+        return lastWindowTop;
+    }
+
+    public Set<String> hotKeys() {
+        return hotKeys;
+    }
+
+    /**
+     * 滚动窗口，找出新成为热点的key并发布事件
+     */
+    @Scheduled(fixedDelayString = "${hmdp.hotkey.window:PT10S}")
+    public void rotateWindow() {
+        if (!enabled) {
+            return;
+        }
+        Window finished = current;
+        current = new Window();
+        List<HotKey> top = finished.top();
+        Set<String> hot = new HashSet<>();
+        for (HotKey hotKey : top) {
+            if (hotKey.getCount() < hotThreshold) {
+                continue;
+            }
+            hot.add(hotKey.getKey());
+            if (!hotKeys.contains(hotKey.getKey())) {
+                hotKeyCounter.increment();
+                log.info("发现热点key, key = {}, count = {}", hotKey.getKey(), hotKey.getCount());
+                eventPublisher.publishEvent(new HotKeyEvent(this, hotKey.getKey(), hotKey.getCount()));
+            }
+        }
+        lastWindowTop = top;
+        hotKeys = hot;
+        List<MultiGauge.Row<?>> rows = new ArrayList<>(top.size());
+        for (int i = 0; i < top.size(); i++) {
+            rows.add(MultiGauge.Row.of(Tags.of("rank", String.valueOf(i + 1)), top.get(i).getCount()));
+        }
+        topGauge.register(rows, true);
+    }
+
+    private long scale(long sampled) {
+        return sampleRate < 1 ? (long) (sampled / sampleRate) : sampled;
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class HotKey {
+        private String key;
+        private long count;
+    }
+
+    /**
+     * 一个统计窗口：Count-Min Sketch + 访问最多的K个key（小顶堆）
+     */
+    private class Window {
+        private final CountMinSketch sketch = new CountMinSketch(sketchDepth, sketchWidth);
+        private final PriorityQueue<HotKey> heap = new PriorityQueue<>(Comparator.comparingLong(HotKey::getCount));
+        private final Map<String, HotKey> index = new HashMap<>();
+        /**
+         * 堆满后堆顶的访问次数，低于它的key不需要加锁更新堆
+         */
+        private volatile long minCount;
+
+        void add(String key) {
+            long count = sketch.add(key);
+            if (count <= minCount) {
+                return;
+            }
+            synchronized (this) {
+                HotKey hotKey = index.get(key);
+                if (hotKey != null) {
+                    heap.remove(hotKey);
+                    hotKey.setCount(count);
+                    heap.offer(hotKey);
+                } else if (heap.size() < topK) {
+                    hotKey = new HotKey(key, count);
+                    index.put(key, hotKey);
+                    heap.offer(hotKey);
+                } else if (count > heap.peek().getCount()) {
+                    index.remove(heap.poll().getKey());
+                    hotKey = new HotKey(key, count);
+                    index.put(key, hotKey);
+                    heap.offer(hotKey);
+                }
+                if (heap.size() >= topK) {
+                    minCount = heap.peek().getCount();
+                }
+            }
+        }
+
+        synchronized List<HotKey> top() {
+            return heap.stream()
+                    .map(hotKey -> new HotKey(hotKey.getKey(), scale(hotKey.getCount())))
+                    .sorted(Comparator.comparingLong(HotKey::getCount).reversed())
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.hmdp.utils;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * /actuator/hotkeys，查看当前窗口和上一个窗口访问最多的key
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Component
+@Endpoint(id = "hotkeys")
+public class HotKeyEndpoint {
+    private final HotKeyDetector hotKeyDetector;
+
+    public HotKeyEndpoint(HotKeyDetector hotKeyDetector) {
+        this.hotKeyDetector = hotKeyDetector;
+    }
+
+    @ReadOperation
+    public Map<String, Object> hotKeys() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", hotKeyDetector.isEnabled());
+        result.put("hot", hotKeyDetector.hotKeys());
+        result.put("lastWindow", hotKeyDetector.lastWindowTop());
+        result.put("currentWindow", hotKeyDetector.currentTop());
+        return result;
+    }
+}
@@ -0,0 +1,31 @@
+package com.hmdp.utils;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * key进入访问最多的K个key、且一个统计窗口内的访问次数达到阈值，成为热点key时发布，其他组件（例如本地缓存）可以用@EventListener订阅
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+public class HotKeyEvent extends ApplicationEvent {
+    private final String key;
+    /**
+     * 窗口内的估计访问次数（已按采样率换算）
+     */
+    private final long count;
+
+    public HotKeyEvent(Object source, String key, long count) {
+        super(source);
+        this.key = key;
+        this.count = count;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
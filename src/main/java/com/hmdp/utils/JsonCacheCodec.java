@@ -0,0 +1,54 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * JSON编解码，与之前直接写JSON字符串（逻辑过期数据包装成RedisData）的格式完全兼容
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] encodeWithLogicalExpire(Object value, long expireMillis) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireMillis), ZoneId.systemDefault()));
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public <R> Expiring<R> decodeWithLogicalExpire(byte[] bytes, Class<R> type) {
+        // 只解析一次JSON文本，业务对象和过期时间都从解析结果中读取
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        return new Expiring<>(JSONUtil.toBean(json.getJSONObject("data"), type), expireMillis(json));
+    }
+
+    @Override
+    public long readExpireMillis(byte[] bytes) {
+        // JSON格式没有头部，只能解析文本，但不转换成业务对象
+        return expireMillis(JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8)));
+    }
+
+    private long expireMillis(JSONObject json) {
+        LocalDateTime expireTime = json.toBean(RedisData.class).getExpireTime();
+        return expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
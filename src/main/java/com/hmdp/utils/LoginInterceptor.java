@@ -1,6 +1,7 @@
 package com.hmdp.utils;
 
 import org.springframework.web.servlet.HandlerInterceptor;
+import javax.servlet.DispatcherType;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -13,6 +14,10 @@ public class LoginInterceptor implements HandlerInterceptor {
 
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //异步请求完成后分派回来只写出结果，首次分派时已经校验过登录
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            return true;
+        }
         //1、判断是否需要拦截（ThreadLocal中是否有用户）
         if (UserHolder.getUser() == null) {
             //没有，需要拦截，设置状态码
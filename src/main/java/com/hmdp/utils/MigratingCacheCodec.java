@@ -0,0 +1,40 @@
+package com.hmdp.utils;
+
+/**
+ * 迁移模式：新数据写二进制格式，读取时根据魔数同时兼容二进制和JSON两种格式
+ * 旧的JSON数据过期或被重建后会逐步被替换成二进制格式
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+public class MigratingCacheCodec implements CacheCodec {
+    private final BinaryCacheCodec binary = new BinaryCacheCodec();
+    private final JsonCacheCodec json = new JsonCacheCodec();
+
+    @Override
+    public byte[] encode(Object value) {
+        return binary.encode(value);
+    }
+
+    @Override
+    public byte[] encodeWithLogicalExpire(Object value, long expireMillis) {
+        return binary.encodeWithLogicalExpire(value, expireMillis);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        return binary.isEncoded(bytes) ? binary.decode(bytes, type) : json.decode(bytes, type);
+    }
+
+    @Override
+    public <R> Expiring<R> decodeWithLogicalExpire(byte[] bytes, Class<R> type) {
+        return binary.isEncoded(bytes)
+                ? binary.decodeWithLogicalExpire(bytes, type)
+                : json.decodeWithLogicalExpire(bytes, type);
+    }
+
+    @Override
+    public long readExpireMillis(byte[] bytes) {
+        return binary.isEncoded(bytes) ? binary.readExpireMillis(bytes) : json.readExpireMillis(bytes);
+    }
+}
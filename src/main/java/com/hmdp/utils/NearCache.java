@@ -0,0 +1,181 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+
+/**
+ * 进程内一级缓存（L1），位于CacheClient与Redis之间
+ * 基于Caffeine的W-TinyLFU淘汰/准入策略，按条数或权重（缓存值字节数）限制容量
+ * 节点间通过Redis pub/sub广播失效消息，保证更新数据库后所有节点的L1都被清除
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Slf4j
+@Component
+public class NearCache {
+    /**
+     * 节点标识，用于忽略自己发出的失效消息
+     */
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+    private static final String SEPARATOR = "|";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final MeterRegistry meterRegistry;
+
+    @Getter
+    @Value("${hmdp.cache.local.enabled:false}")
+    private boolean enabled;
+    @Value("${hmdp.cache.local.maximum-size:10000}")
+    private long maximumSize;
+    /**
+     * 大于0时按权重（字节数）限制容量，否则按条数限制
+     */
+    @Value("${hmdp.cache.local.maximum-weight:0}")
+    private long maximumWeight;
+    @Value("${hmdp.cache.local.expire-after-write:60s}")
+    private Duration expireAfterWrite;
+
+    private Cache<String, Entry> cache;
+
+    /**
+     * 按key前缀统计的命中/未命中计数，下标0为hit，1为miss
+     */
+    private final Map<String, Counter[]> counters = new ConcurrentHashMap<>();
+
+    public NearCache(StringRedisTemplate stringRedisTemplate,
+                     RedisMessageListenerContainer listenerContainer,
+                     MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        Caffeine<Object, Object> builder = Caffeine.newBuilder()
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats();
+        if (maximumWeight > 0) {
+            builder.maximumWeight(maximumWeight)
+                    .weigher((String key, Entry entry) -> entry.getWeight());
+        } else {
+            builder.maximumSize(maximumSize);
+        }
+        cache = builder.build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "near");
+        //订阅失效消息
+        listenerContainer.addMessageListener((message, pattern) ->
+                onInvalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 查询L1，并按前缀记录命中情况
+     * @param keyPrefix 统计用的key前缀
+     * @param key 完整的key
+     * @return 未开启或未命中返回null
+     */
+    public Entry get(String keyPrefix, String key) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry = cache.getIfPresent(key);
+        counters(keyPrefix)[entry != null ? 0 : 1].increment();
+        return entry;
+    }
+
+    /**
+     * 写入L1
+     * @param key 完整的key
+     * @param value 反序列化后的对象
+     * @param expireMillis 逻辑过期时间（毫秒时间戳），没有逻辑过期传0
+     * @param weight 权重，一般为缓存值的字节数
+     */
+    public void put(String key, Object value, long expireMillis, int weight) {
+        if (!enabled || value == null) {
+            return;
+        }
+        cache.put(key, new Entry(value, expireMillis, Math.max(weight, 1)));
+    }
+
+    /**
+     * 只清除本节点的L1
+     */
+    public void invalidateLocal(String key) {
+        if (enabled) {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * 清除本节点L1并通知其他节点
+     */
+    public void invalidate(String key) {
+        if (!enabled) {
+            return;
+        }
+        cache.invalidate(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, NODE_ID + SEPARATOR + key);
+    }
+
+    private void onInvalidate(String body) {
+        int i = body.indexOf(SEPARATOR);
+        if (i < 0 || NODE_ID.equals(body.substring(0, i))) {
+            return;
+        }
+        String key = body.substring(i + 1);
+        log.debug("收到L1失效通知, key = {}", key);
+        cache.invalidate(key);
+    }
+
+    private Counter[] counters(String keyPrefix) {
+        return counters.computeIfAbsent(keyPrefix, p -> new Counter[]{
+                meterRegistry.counter("cache.near.requests", "prefix", p, "result", "hit"),
+                meterRegistry.counter("cache.near.requests", "prefix", p, "result", "miss")
+        });
+    }
+
+    @Getter
+    public static class Entry {
+        private final Object value;
+        /**
+         * 逻辑过期时间，0表示没有逻辑过期
+         */
+        private final long expireMillis;
+        private final int weight;
+
+        Entry(Object value, long expireMillis, int weight) {
+            this.value = value;
+            this.expireMillis = expireMillis;
+            this.weight = weight;
+        }
+
+        public boolean isLogicalExpired() {
+            return expireMillis > 0 && expireMillis <= System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_SUBSCRIBE_KEY;
+
+/**
+ * 秒杀订单结果通知
+ * 消费者在订单入库或被拒绝后（事务提交后）把最终状态写入order:status:{orderId} hash（短有效期），并发布到order:status频道；
+ * 客户端通过SSE订阅订单结果，每个节点只有一个pub/sub监听器，收到消息后分发给本节点订阅了该订单的连接
+ * 订阅时状态已经写入的直接返回，不需要等待消息
+ * 浏览器的EventSource不能携带authorization请求头，登录用户先申请一个绑定订单的短期订阅令牌，再通过?token=订阅
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Slf4j
+@Component
+public class OrderStatusNotifier {
+    public static final String CREATED = "CREATED";
+    public static final String REJECTED = "REJECTED";
+
+    private static final String SEPARATOR = "|";
+
+    private static final DefaultRedisScript<Long> ORDER_STATUS_SCRIPT;
+
+    static {
+        ORDER_STATUS_SCRIPT = new DefaultRedisScript<>();
+        ORDER_STATUS_SCRIPT.setLocation(new ClassPathResource("order_status.lua"));
+        ORDER_STATUS_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 订单状态的保留时间
+     */
+    @Value("${hmdp.order.status.ttl:PT10M}")
+    private Duration ttl;
+    /**
+     * SSE连接最长等待时间，超时后客户端可以重新订阅
+     */
+    @Value("${hmdp.order.status.sse-timeout:PT30S}")
+    private Duration sseTimeout;
+    /**
+     * 订阅令牌的有效期，有效期内EventSource断线重连可以重复使用
+     */
+    @Value("${hmdp.order.status.subscribe-token-ttl:PT5M}")
+    private Duration subscribeTokenTtl;
+
+    /**
+     * 订单id -> 本节点订阅该订单的连接
+     */
+    private final Map<Long, List<Subscriber>> subscribers = new ConcurrentHashMap<>();
+
+    public OrderStatusNotifier(StringRedisTemplate stringRedisTemplate,
+                               RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener((message, pattern) ->
+                        onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(ORDER_STATUS_CHANNEL));
+    }
+
+    /**
+     * 订单已入库，在事务提交后通知
+     */
+    public void created(Collection<VoucherOrder> orders) {
+        List<VoucherOrder> copy = new ArrayList<>(orders);
+        afterCommit(() -> publish(copy, CREATED, ""));
+    }
+
+    /**
+     * 订单被拒绝，在事务提交后通知；事务回滚时不通知，由重试的结果决定最终状态
+     */
+    public void rejected(VoucherOrder order, String reason) {
+        afterCommit(() -> publish(Collections.singletonList(order), REJECTED, reason));
+    }
+
+    /**
+     * 立即写入最终状态并通知，已有状态的订单不覆盖
+     */
+    public void publish(List<VoucherOrder> orders, String status, String reason) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        byte[] script = ORDER_STATUS_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        byte[] ttlSeconds = bytes(String.valueOf(ttl.getSeconds()));
+        byte[] channel = bytes(ORDER_STATUS_CHANNEL);
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (VoucherOrder order : orders) {
+                    String message = order.getId() + SEPARATOR + order.getUserId() + SEPARATOR + status + SEPARATOR + reason;
+                    connection.scriptingCommands().eval(script, ReturnType.INTEGER, 1,
+                            bytes(ORDER_STATUS_KEY + order.getId()), bytes(status), bytes(String.valueOf(order.getUserId())),
+                            bytes(reason), ttlSeconds, channel, bytes(message));
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // 通知失败不影响下单，客户端超时后重新订阅时会查询状态
+            log.error("写入订单状态失败, status = {}, size = {}", status, orders.size(), e);
+        }
+    }
+
+    /**
+     * 生成订阅令牌，令牌只能用于订阅这一个订单，不能代替登录token访问其他接口
+     * @return 订阅令牌
+     */
+    public String issueSubscribeToken(Long orderId, Long userId) {
+        String token = UUID.randomUUID().toString(true);
+        stringRedisTemplate.opsForValue().set(ORDER_SUBSCRIBE_KEY + token, orderId + SEPARATOR + userId,
+                subscribeTokenTtl);
+        return token;
+    }
+
+    /**
+     * 校验订阅令牌
+     * @return 令牌所属的用户id，令牌不存在、已过期或不是这个订单的令牌时返回null
+     */
+    public Long verifySubscribeToken(Long orderId, String token) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        String value = stringRedisTemplate.opsForValue().get(ORDER_SUBSCRIBE_KEY + token);
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split("\\|", 2);
+        if (parts.length < 2 || !orderId.toString().equals(parts[0])) {
+            return null;
+        }
+        return Long.valueOf(parts[1]);
+    }
+
+    /**
+     * 订阅订单结果，只能订阅自己的订单
+     */
+    public SseEmitter subscribe(Long orderId, Long userId) {
+        SseEmitter emitter = new SseEmitter(sseTimeout.toMillis());
+        Subscriber subscriber = new Subscriber(userId, emitter);
+        subscribers.computeIfAbsent(orderId, id -> new CopyOnWriteArrayList<>()).add(subscriber);
+        Runnable remove = () -> subscribers.computeIfPresent(orderId, (id, list) -> {
+            list.remove(subscriber);
+            return list.isEmpty() ? null : list;
+        });
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        emitter.onError(e -> remove.run());
+        // 先注册再查询，查询之后写入的状态一定会收到消息
+        Map<Object, Object> status = stringRedisTemplate.opsForHash().entries(ORDER_STATUS_KEY + orderId);
+        if (status.get("status") != null) {
+            String owner = String.valueOf(status.get("userId"));
+            if (!userId.toString().equals(owner)) {
+                // 不是自己的订单，不推送结果
+                emitter.complete();
+                return emitter;
+            }
+            send(orderId, owner, status.get("status").toString(), String.valueOf(status.getOrDefault("reason", "")));
+        }
+        return emitter;
+    }
+
+    private void onMessage(String body) {
+        String[] parts = body.split("\\|", 4);
+        if (parts.length < 4) {
+            log.warn("无法解析订单状态消息: {}", body);
+            return;
+        }
+        try {
+            send(Long.valueOf(parts[0]), parts[1], parts[2], parts[3]);
+        } catch (NumberFormatException e) {
+            log.warn("无法解析订单状态消息: {}", body);
+        }
+    }
+
+    /**
+     * 发送给订阅了该订单的本节点连接并结束连接
+     */
+    private void send(Long orderId, String userId, String status, String reason) {
+        List<Subscriber> list = subscribers.get(orderId);
+        if (list == null) {
+            return;
+        }
+        Map<String, Object> event = new HashMap<>(4);
+        event.put("orderId", orderId.toString());
+        event.put("status", status);
+        event.put("reason", reason);
+        for (Subscriber subscriber : list) {
+            if (!subscriber.userId.toString().equals(userId)) {
+                continue;
+            }
+            try {
+                subscriber.emitter.send(SseEmitter.event().name("status").data(event));
+                subscriber.emitter.complete();
+            } catch (IOException | IllegalStateException e) {
+                // 客户端已断开或连接已结束
+                subscriber.emitter.completeWithError(e);
+            }
+        }
+    }
+
+    private static void afterCommit(Runnable task) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            task.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                task.run();
+            }
+        });
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class Subscriber {
+        private final Long userId;
+        private final SseEmitter emitter;
+
+        Subscriber(Long userId, SseEmitter emitter) {
+            this.userId = userId;
+            this.emitter = emitter;
+        }
+    }
+}
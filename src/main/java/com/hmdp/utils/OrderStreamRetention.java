@@ -0,0 +1,265 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STREAM_KEY;
+
+/**
+ * 订单stream的保留策略和监控
+ * 定时计算每个分区可以安全删除的位置：所有消费者组中最小的pending id，没有pending时为last-delivered-id，
+ * 再用XTRIM MINID ~ 删除之前的消息，已确认的消息不会一直占用内存；同时至少保留retention时间内的消息便于排查
+ * 只用MINID裁剪，不用MAXLEN：MAXLEN按条数裁剪，积压时会删掉还没有消费的订单
+ * 同时发布stream长度、pending数、消费延迟（未投递的消息数）、最早pending消息的等待时间等指标，
+ * 并以更短的间隔刷新订单积压量（pending + 未投递），供秒杀入口削峰使用
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Slf4j
+@Component
+public class OrderStreamRetention {
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT;
+
+    static {
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("stream_trim.lua"));
+        TRIM_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.order.partitions:1}")
+    private int partitions;
+    /**
+     * Redis 7以下XINFO GROUPS没有lag字段，需要逐条统计未投递的消息，最多统计到削峰阈值，超过阈值时准确值没有意义
+     */
+    @Value("${hmdp.rate-limit.max-backlog:50000}")
+    private long maxBacklog;
+    @Value("${hmdp.seckill.order.trim-enabled:true}")
+    private boolean trimEnabled;
+    /**
+     * 已确认的消息至少保留的时间
+     */
+    @Value("${hmdp.seckill.order.retention:PT1H}")
+    private Duration retention;
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    public OrderStreamRetention(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        for (String stream : streams()) {
+            Stats s = new Stats();
+            stats.put(stream, s);
+            Tags tags = Tags.of("stream", stream);
+            Gauge.builder("seckill.stream.length", s, x -> x.length).tags(tags).register(meterRegistry);
+            Gauge.builder("seckill.stream.pending", s, x -> x.pending).tags(tags).register(meterRegistry);
+            Gauge.builder("seckill.stream.lag", s, x -> x.lag).tags(tags)
+                    .description("还没有投递给消费者的消息数").register(meterRegistry);
+            Gauge.builder("seckill.stream.oldest.pending.age", s, x -> x.oldestPendingSeconds).tags(tags)
+                    .baseUnit("seconds").description("最早的pending消息已等待的时间").register(meterRegistry);
+            Gauge.builder("seckill.stream.trimmed", s, x -> x.trimmed).tags(tags).register(meterRegistry);
+        }
+    }
+
+    private List<String> streams() {
+        if (partitions <= 1) {
+            return Collections.singletonList(ORDER_STREAM_KEY);
+        }
+        List<String> streams = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            streams.add(ORDER_STREAM_KEY + "." + i);
+        }
+        return streams;
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order.retention-interval:PT30S}")
+    public void run() {
+        stats.forEach((stream, s) -> {
+            try {
+                if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(stream))) {
+                    return;
+                }
+                RecordId safeId = refresh(stream, s);
+                if (trimEnabled && safeId != null) {
+                    trim(stream, safeId, s);
+                }
+            } catch (Exception e) {
+                log.error("订单stream保留任务失败, stream = {}", stream, e);
+            }
+        });
+    }
+
+    /**
+     * 订单积压量：所有分区pending消息数与未投递消息数之和
+     */
+    public long backlog() {
+        long backlog = 0;
+        for (Stats s : stats.values()) {
+            backlog += s.pending + s.lag;
+        }
+        return backlog;
+    }
+
+    /**
+     * 只刷新pending数和消费延迟，每次每个分区一条XINFO GROUPS
+     * Redis 7以下没有lag字段，这里不逐条统计，沿用retention-interval定时任务统计的消费延迟
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order.backlog-interval:PT1S}")
+    public void refreshBacklog() {
+        stats.forEach((stream, s) -> {
+            try {
+                if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(stream))) {
+                    return;
+                }
+                StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(stream);
+                if (groups == null) {
+                    return;
+                }
+                long pending = 0;
+                long lag = 0;
+                boolean lagKnown = true;
+                for (int i = 0; i < groups.size(); i++) {
+                    StreamInfo.XInfoGroup group = groups.get(i);
+                    Long groupPending = group.pendingCount();
+                    pending += groupPending == null ? 0 : groupPending;
+                    Long groupLag = reportedLag(group);
+                    if (groupLag == null) {
+                        lagKnown = false;
+                    } else {
+                        lag = Math.max(lag, groupLag);
+                    }
+                }
+                s.pending = pending;
+                if (lagKnown) {
+                    s.lag = lag;
+                }
+            } catch (Exception e) {
+                log.error("刷新订单积压失败, stream = {}", stream, e);
+            }
+        });
+    }
+
+    /**
+     * 更新监控指标，返回可以安全删除的位置（该id之前的消息都已被所有消费者组确认），没有消费者组时返回null
+     */
+    private RecordId refresh(String stream, Stats s) {
+        Long length = stringRedisTemplate.opsForStream().size(stream);
+        s.length = length == null ? 0 : length;
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(stream);
+        if (groups == null || groups.isEmpty()) {
+            return null;
+        }
+        long pending = 0;
+        long lag = 0;
+        RecordId safeId = null;
+        RecordId oldestPending = null;
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            RecordId groupSafeId = RecordId.of(group.lastDeliveredId());
+            Long groupPending = group.pendingCount();
+            if (groupPending != null && groupPending > 0) {
+                pending += groupPending;
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(stream, group.groupName());
+                if (summary != null && summary.getTotalPendingMessages() > 0) {
+                    groupSafeId = summary.minRecordId();
+                    oldestPending = min(oldestPending, groupSafeId);
+                }
+            }
+            safeId = min(safeId, groupSafeId);
+            lag = Math.max(lag, lag(stream, group));
+        }
+        s.pending = pending;
+        s.lag = lag;
+        s.oldestPendingSeconds = oldestPending == null ? 0
+                : Math.max(0, (System.currentTimeMillis() - oldestPending.getTimestamp()) / 1000);
+        return safeId;
+    }
+
+    /**
+     * Redis 7开始XINFO GROUPS直接返回lag，之前的版本统计last-delivered-id之后的消息数，最多统计到削峰阈值
+     */
+    private long lag(String stream, StreamInfo.XInfoGroup group) {
+        Long lag = reportedLag(group);
+        if (lag != null) {
+            return lag;
+        }
+        return stringRedisTemplate.opsForStream().range(stream,
+                Range.rightUnbounded(Range.Bound.exclusive(group.lastDeliveredId())),
+                Limit.limit().count((int) Math.min(Integer.MAX_VALUE, maxBacklog + 1))).size();
+    }
+
+    /**
+     * XINFO GROUPS返回的lag，Redis 7以下或无法计算时返回null
+     */
+    private static Long reportedLag(StreamInfo.XInfoGroup group) {
+        Object raw = group.getRaw().get("lag");
+        if (raw instanceof Number) {
+            return ((Number) raw).longValue();
+        }
+        if (raw instanceof byte[]) {
+            return Long.parseLong(new String((byte[]) raw, StandardCharsets.UTF_8));
+        }
+        if (raw instanceof String) {
+            return Long.parseLong((String) raw);
+        }
+        return null;
+    }
+
+    private void trim(String stream, RecordId safeId, Stats s) {
+        // 至少保留retention时间内的消息
+        long retainFrom = System.currentTimeMillis() - retention.toMillis();
+        RecordId minId = min(safeId, RecordId.of(retainFrom, 0));
+        Long trimmed = stringRedisTemplate.execute(TRIM_SCRIPT, Collections.singletonList(stream), minId.getValue());
+        if (trimmed != null && trimmed > 0) {
+            s.trimmed += trimmed;
+            log.debug("裁剪订单stream, stream = {}, minId = {}, trimmed = {}", stream, minId, trimmed);
+        }
+    }
+
+    private static RecordId min(RecordId a, RecordId b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.getTimestamp() != b.getTimestamp()) {
+            return a.getTimestamp() < b.getTimestamp() ? a : b;
+        }
+        return a.getSequence() <= b.getSequence() ? a : b;
+    }
+
+    private static class Stats {
+        private volatile long length;
+        private volatile long pending;
+        private volatile long lag;
+        private volatile long oldestPendingSeconds;
+        private volatile long trimmed;
+    }
+}
@@ -0,0 +1,56 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 接口准入控制，由RateLimitAspect处理：
+ * 按用户和按目标（例如秒杀券）的GCRA限流，在一个lua脚本中原子地检查；被拒绝的用户或目标在等待时间内直接在本地拒绝；
+ * 可选按订单stream的积压量削峰
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface RateLimit {
+
+    /**
+     * 限流名称，redis key为rate:{name}:user:{userId}和rate:{name}:target:{target}
+     */
+    String name();
+
+    /**
+     * 每个用户每秒允许的请求数，0表示不按用户限流
+     */
+    double userPerSecond() default 0;
+
+    /**
+     * 每个用户允许的突发请求数
+     */
+    int userBurst() default 1;
+
+    /**
+     * 每个目标每秒允许的请求数，0表示不按目标限流
+     */
+    double targetPerSecond() default 0;
+
+    /**
+     * 每个目标允许的突发请求数
+     */
+    int targetBurst() default 1;
+
+    /**
+     * 目标id在方法参数中的下标
+     */
+    int targetArg() default 0;
+
+    /**
+     * 订单积压超过hmdp.rate-limit.max-backlog时直接拒绝
+     */
+    boolean shedOnBacklog() default false;
+}
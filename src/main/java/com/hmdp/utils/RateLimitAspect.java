@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_KEY;
+
+/**
+ * 处理@RateLimit，按顺序检查：
+ * 1.订单stream积压超过maxBacklog时削峰，积压量由OrderStreamRetention定时刷新，不访问redis
+ * 2.本地预过滤：最近被redis拒绝的用户或目标，在返回的等待时间内直接在本地拒绝，刷接口的请求不再访问redis
+ * 3.rate_limit.lua对用户和目标的GCRA限流，全部通过才消耗额度
+ * 被拒绝的请求返回失败结果，异步接口返回已完成的CompletableFuture
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Slf4j
+@Aspect
+@Component
+public class RateLimitAspect {
+    private static final DefaultRedisScript<List> RATE_LIMIT_SCRIPT;
+
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(List.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final OrderStreamRetention orderStreamRetention;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hmdp.rate-limit.enabled:false}")
+    private boolean enabled;
+    /**
+     * 订单积压（pending + 未投递）超过该值时拒绝shedOnBacklog的接口
+     */
+    @Value("${hmdp.rate-limit.max-backlog:50000}")
+    private long maxBacklog;
+    /**
+     * 本地最多记录的被拒绝key数
+     */
+    @Value("${hmdp.rate-limit.local-block-size:100000}")
+    private long localBlockSize;
+    /**
+     * 本地拒绝的最长时间，redis返回的等待时间更长时以此为准
+     */
+    @Value("${hmdp.rate-limit.local-block-max:PT10S}")
+    private Duration localBlockMax;
+
+    /**
+     * 限流key -> 本地拒绝到的时间（毫秒时间戳）
+     */
+    private Cache<String, Long> blocked;
+
+    public RateLimitAspect(StringRedisTemplate stringRedisTemplate, OrderStreamRetention orderStreamRetention,
+                           MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.orderStreamRetention = orderStreamRetention;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        blocked = Caffeine.newBuilder()
+                .maximumSize(localBlockSize)
+                .expireAfterWrite(localBlockMax)
+                .build();
+    }
+
+    @Around("@annotation(rateLimit)")
+    public Object around(ProceedingJoinPoint joinPoint, RateLimit rateLimit) throws Throwable {
+        if (!enabled) {
+            return joinPoint.proceed();
+        }
+        String reason = admit(joinPoint.getArgs(), rateLimit);
+        if (reason == null) {
+            return joinPoint.proceed();
+        }
+        meterRegistry.counter("ratelimit.rejected", "name", rateLimit.name(), "reason", reason).increment();
+        Result result = Result.fail("backlog".equals(reason) ? "系统繁忙，请稍后再试" : "请求过于频繁，请稍后再试");
+        Class<?> returnType = ((MethodSignature) joinPoint.getSignature()).getReturnType();
+        return CompletionStage.class.isAssignableFrom(returnType) ? CompletableFuture.completedFuture(result) : result;
+    }
+
+    /**
+     * @return 通过返回null，否则返回拒绝原因：backlog、local或redis
+     */
+    private String admit(Object[] args, RateLimit rateLimit) {
+        // 1.积压削峰
+        if (rateLimit.shedOnBacklog() && orderStreamRetention.backlog() > maxBacklog) {
+            return "backlog";
+        }
+        long now = System.currentTimeMillis();
+        List<String> keys = new ArrayList<>(2);
+        List<String> scriptArgs = new ArrayList<>(5);
+        scriptArgs.add(String.valueOf(now));
+        UserDTO user = UserHolder.getUser();
+        if (rateLimit.userPerSecond() > 0 && user != null) {
+            keys.add(RATE_LIMIT_KEY + rateLimit.name() + ":user:" + user.getId());
+            scriptArgs.add(String.valueOf(1000 / rateLimit.userPerSecond()));
+            scriptArgs.add(String.valueOf(rateLimit.userBurst()));
+        }
+        int targetArg = rateLimit.targetArg();
+        if (rateLimit.targetPerSecond() > 0 && targetArg < args.length && args[targetArg] != null) {
+            keys.add(RATE_LIMIT_KEY + rateLimit.name() + ":target:" + args[targetArg]);
+            scriptArgs.add(String.valueOf(1000 / rateLimit.targetPerSecond()));
+            scriptArgs.add(String.valueOf(rateLimit.targetBurst()));
+        }
+        if (keys.isEmpty()) {
+            return null;
+        }
+        // 2.本地预过滤
+        for (String key : keys) {
+            Long until = blocked.getIfPresent(key);
+            if (until != null && until > now) {
+                return "local";
+            }
+        }
+        // 3.GCRA限流
+        List<?> result = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT, keys, scriptArgs.toArray());
+        if (result == null || result.size() < 2 || ((Number) result.get(0)).longValue() == 0) {
+            return null;
+        }
+        long retryAfter = ((Number) result.get(0)).longValue();
+        int denied = ((Number) result.get(1)).intValue();
+        blocked.put(keys.get(denied - 1), now + Math.min(retryAfter, localBlockMax.toMillis()));
+        return "redis";
+    }
+}
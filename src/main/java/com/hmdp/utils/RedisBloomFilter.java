@@ -0,0 +1,131 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.springframework.data.redis.connection.BitFieldSubCommands.BitFieldType.unsigned;
+
+/**
+ * 基于Redis bitmap的布隆过滤器
+ * 位数组长度和哈希函数个数由预期元素数量和误判率计算得出，k个位置用两个64位哈希组合生成（Kirsch-Mitzenmacher），
+ * 判断和添加都只需要一次脚本调用；判断时区分key不存在，添加时同时写入正在重建的临时key
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+public class RedisBloomFilter {
+    private static final DefaultRedisScript<Long> CHECK_SCRIPT;
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+
+    static {
+        CHECK_SCRIPT = new DefaultRedisScript<>();
+        CHECK_SCRIPT.setLocation(new ClassPathResource("bloom_check.lua"));
+        CHECK_SCRIPT.setResultType(Long.class);
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("bloom_add.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    /**
+     * 位数组长度
+     */
+    private final long bitSize;
+    /**
+     * 哈希函数个数
+     */
+    private final int hashCount;
+
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        // m = -n*ln(p) / (ln2)^2，k = m/n * ln2
+        this.bitSize = Math.max(64, (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+    }
+
+    /**
+     * 参数不同的过滤器不能混用，key中带上参数，修改配置后会自动重建一个新的过滤器
+     */
+    public String keyOf(String name) {
+        return RedisConstants.BLOOM_FILTER_KEY + name + ":" + bitSize + "x" + hashCount;
+    }
+
+    /**
+     * 重建时使用的临时key
+     */
+    public static String rebuildingKeyOf(String key) {
+        return key + ":rebuilding";
+    }
+
+    /**
+     * 判断是否可能存在
+     * @return 过滤器key不存在时返回null，一定不存在返回false
+     */
+    public Boolean mightContain(String key, String member) {
+        Long result = stringRedisTemplate.execute(CHECK_SCRIPT, Collections.singletonList(key), offsetArgs(member));
+        if (result == null || result < 0) {
+            return null;
+        }
+        return result == 1;
+    }
+
+    /**
+     * 添加元素，过滤器正在重建时同时写入临时key
+     */
+    public void add(String key, String member) {
+        stringRedisTemplate.execute(ADD_SCRIPT, Arrays.asList(key, rebuildingKeyOf(key)), offsetArgs(member));
+    }
+
+    /**
+     * 批量添加，一次pipeline
+     */
+    public void addAll(String key, Collection<String> members) {
+        if (members.isEmpty()) {
+            return;
+        }
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String member : members) {
+                connection.stringCommands().bitField(rawKey, setCommands(member));
+            }
+            return null;
+        });
+    }
+
+    private BitFieldSubCommands setCommands(String member) {
+        BitFieldSubCommands commands = BitFieldSubCommands.create();
+        for (long offset : offsets(member)) {
+            commands = commands.set(unsigned(1)).valueAt(offset).to(1);
+        }
+        return commands;
+    }
+
+    private Object[] offsetArgs(String member) {
+        long[] offsets = offsets(member);
+        Object[] args = new Object[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            args[i] = String.valueOf(offsets[i]);
+        }
+        return args;
+    }
+
+    private long[] offsets(String member) {
+        long[] hash = MurmurHash.hash128(member);
+        long[] offsets = new long[hashCount];
+        long combined = hash[0];
+        for (int i = 0; i < hashCount; i++) {
+            offsets[i] = (combined & Long.MAX_VALUE) % bitSize;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+}
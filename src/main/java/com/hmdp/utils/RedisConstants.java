@@ -11,10 +11,37 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    public static final String CACHE_VERSION_KEY = "cache:version:";
+    public static final Long CACHE_VERSION_TTL = 1L;
+
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_LEASE_HOLDERS_KEY = "seckill:lease:holders:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_SHARDS_ACTIVE_KEY = "seckill:shards:active";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_BITMAP_KEY = "seckill:buyers:bitmap:";
+    public static final String SECKILL_BUCKET_KEY = "seckill:buyers:bucket:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_RECONCILE_KEY = "seckill:reconcile:";
+    public static final String LOCK_RECONCILE_KEY = "lock:seckill:reconcile";
+    public static final String LOCK_REBALANCE_KEY = "lock:seckill:rebalance";
+    public static final String RATE_LIMIT_KEY = "rate:";
+    public static final String ORDER_STREAM_KEY = "stream.orders";
+    public static final String ORDER_DLQ_KEY = "stream.orders.dlq";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final String ORDER_STATUS_CHANNEL = "order:status";
+    public static final String ORDER_SUBSCRIBE_KEY = "order:subscribe:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -1,16 +1,30 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * 全局唯一id：时间戳（秒）<< 32 | 当天的序列号
+ * 号段模式下每个节点用一次INCRBY租用一段序列号，在本地用原子变量分配，号段用掉一部分时异步预取下一段，
+ * 生成id不再需要访问redis；序列号在集群内唯一，单个节点内单调递增
+ *
  * @author hyh
  * @date 2024/4/16
  */
+@Slf4j
 @Component
 public class RedisIdWorker {
     /**
@@ -22,13 +36,74 @@ public class RedisIdWorker {
      */
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
     private StringRedisTemplate stringRedisTemplate;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+
+    @Value("${hmdp.id.segment.enabled:false}")
+    private boolean segmentEnabled;
+    /**
+     * 每次租用的序列号个数
+     */
+    @Value("${hmdp.id.segment.size:1000}")
+    private long segmentSize;
+    /**
+     * 当前号段用掉这个比例后预取下一段
+     */
+    @Value("${hmdp.id.segment.prefetch-ratio:0.5}")
+    private double prefetchRatio;
+
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, ReactiveStringRedisTemplate reactiveStringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.reactiveStringRedisTemplate = reactiveStringRedisTemplate;
     }
 
     public long nextId(String keyPrefix) {
+        if (!segmentEnabled) {
+            return nextIdByIncr(keyPrefix);
+        }
+        // 1、生成时间戳
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+
+        // 2、从本地号段中取序列号
+        long count = nextCount(keyPrefix, now.format(DATE_FORMATTER));
+
+        // 3、拼接并返回
+        return (timestamp << COUNT_BITS) | count;
+    }
+
+    /**
+     * 异步生成id，不占用调用线程等待redis
+     * 号段模式下id在本地分配，直接返回；否则通过lettuce的异步连接INCR，redis返回后在lettuce的IO线程上完成
+     * 号段用完时会同步租用下一段，不能在lettuce的IO线程上调用
+     */
+    public CompletableFuture<Long> nextIdAsync(String keyPrefix) {
+        if (segmentEnabled) {
+            return CompletableFuture.completedFuture(nextId(keyPrefix));
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        return reactiveStringRedisTemplate.opsForValue()
+                .increment("icr:" + keyPrefix + ":" + now.format(DATE_FORMATTER))
+                .map(count -> (timestamp << COUNT_BITS) | count)
+                .toFuture();
+    }
+
+    /**
+     * 每个id都INCR一次redis
+     */
+    public long nextIdByIncr(String keyPrefix) {
         // 1、生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
@@ -36,7 +111,7 @@ public class RedisIdWorker {
 
         // 2、生成序列化号（利用redis的自增长）
         // 2.1 获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         // 2.2 自增长
         long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
 
@@ -44,6 +119,95 @@ public class RedisIdWorker {
         return (timestamp << COUNT_BITS) | count;
     }
 
+    /**
+     * 在time之前生成的id都小于这个值，用于按id区间查询某个时间之前的订单
+     */
+    public static long minIdAt(LocalDateTime time) {
+        return (time.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP) << COUNT_BITS;
+    }
+
+    private long nextCount(String keyPrefix, String date) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.date.equals(date)) {
+                long count = segment.next.getAndIncrement();
+                if (count <= segment.end) {
+                    if (count - segment.start >= segmentSize * prefetchRatio) {
+                        prefetch(keyPrefix, date, buffer);
+                    }
+                    return count;
+                }
+            }
+            // 号段用完或日期变化，切换到下一段
+            synchronized (buffer) {
+                if (buffer.current == segment) {
+                    buffer.current = takeNext(keyPrefix, date, buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * 优先使用预取好的号段，没有预取或预取失败时同步租用
+     */
+    private Segment takeNext(String keyPrefix, String date, SegmentBuffer buffer) {
+        CompletableFuture<Segment> prefetched = buffer.prefetched;
+        buffer.prefetched = null;
+        if (prefetched != null) {
+            try {
+                Segment segment = prefetched.join();
+                if (segment.date.equals(date)) {
+                    return segment;
+                }
+            } catch (Exception e) {
+                log.error("预取号段失败, keyPrefix = {}", keyPrefix, e);
+            }
+        }
+        return lease(keyPrefix, date);
+    }
+
+    private void prefetch(String keyPrefix, String date, SegmentBuffer buffer) {
+        if (buffer.prefetched != null) {
+            return;
+        }
+        synchronized (buffer) {
+            if (buffer.prefetched == null) {
+                buffer.prefetched = CompletableFuture.supplyAsync(() -> lease(keyPrefix, date), prefetchExecutor);
+            }
+        }
+    }
+
+    /**
+     * INCRBY一次租用segmentSize个序列号
+     */
+    private Segment lease(String keyPrefix, String date) {
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentSize);
+        if (end == null) {
+            throw new IllegalStateException("租用号段失败, keyPrefix = " + keyPrefix);
+        }
+        return new Segment(date, end - segmentSize + 1, end);
+    }
+
+    private static class Segment {
+        private final String date;
+        private final long start;
+        private final long end;
+        private final AtomicLong next;
+
+        Segment(String date, long start, long end) {
+            this.date = date;
+            this.start = start;
+            this.end = end;
+            this.next = new AtomicLong(start);
+        }
+    }
+
+    private static class SegmentBuffer {
+        private volatile Segment current;
+        private volatile CompletableFuture<Segment> prefetched;
+    }
+
 
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2022, 1, 1, 0, 0, 0);
@@ -0,0 +1,200 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 逻辑过期缓存的提前刷新
+ * 统计每个逻辑过期key的访问频率，热点key在expireTime之前按XFetch算法（概率提前过期）提前重建，
+ * 重建时刻随机分散，避免热点key集中在过期时刻重建、读到旧数据；冷key不做处理，等其自然过期
+ * XFetch：now - delta * beta * ln(rand) >= expireTime 时重建，delta为该key最近的重建耗时
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Component
+public class RefreshAheadScheduler {
+    private final MeterRegistry meterRegistry;
+    private final CacheRebuildExecutor rebuildExecutor;
+
+    @Value("${hmdp.cache.refresh-ahead.enabled:false}")
+    private boolean enabled;
+    /**
+     * 一个统计窗口内访问次数达到该值即为热点key
+     */
+    @Value("${hmdp.cache.refresh-ahead.hot-threshold:100}")
+    private long hotThreshold;
+    @Value("${hmdp.cache.refresh-ahead.beta:1.0}")
+    private double beta;
+    /**
+     * 还没有重建耗时样本时使用的delta
+     */
+    @Value("${hmdp.cache.refresh-ahead.initial-delta-millis:500}")
+    private long initialDeltaMillis;
+    @Value("${hmdp.cache.refresh-ahead.max-tracked-keys:10000}")
+    private int maxTrackedKeys;
+    /**
+     * 没有重建成功（其他节点正在重建或数据已被更新）后的退避时间，连续失败时加倍，最多32倍
+     */
+    @Value("${hmdp.cache.refresh-ahead.retry-backoff:PT1S}")
+    private Duration retryBackoff;
+
+    private final Map<String, Tracked> tracked = new ConcurrentHashMap<>();
+
+    private Counter rebuildCounter;
+    private Timer rebuildTimer;
+    private DistributionSummary staleSummary;
+
+    public RefreshAheadScheduler(MeterRegistry meterRegistry, CacheRebuildExecutor rebuildExecutor) {
+        this.meterRegistry = meterRegistry;
+        this.rebuildExecutor = rebuildExecutor;
+    }
+
+    @PostConstruct
+    private void init() {
+        rebuildCounter = meterRegistry.counter("cache.refresh.rebuilds");
+        rebuildTimer = meterRegistry.timer("cache.refresh.duration");
+        staleSummary = DistributionSummary.builder("cache.logical.stale")
+                .baseUnit("milliseconds")
+                .description("返回逻辑过期旧数据时已过期的时长")
+                .register(meterRegistry);
+        meterRegistry.gauge("cache.refresh.tracked", tracked, Map::size);
+    }
+
+    /**
+     * 记录一次未过期的访问，热点key按XFetch判断是否需要提前重建
+     * @param key 缓存key
+     * @param expireMillis 当前缓存的逻辑过期时间
+     * @param rebuild 重建缓存，返回新的逻辑过期时间，没有重建（例如其他节点正在重建）返回0
+     */
+    public void onAccess(String key, long expireMillis, LongSupplier rebuild) {
+        if (!enabled) {
+            return;
+        }
+        Tracked t = tracked.get(key);
+        if (t == null) {
+            if (tracked.size() >= maxTrackedKeys) {
+                return;
+            }
+            t = tracked.computeIfAbsent(key, k -> new Tracked(initialDeltaMillis));
+        }
+        t.hits.increment();
+        t.expireMillis = expireMillis;
+        t.rebuild = rebuild;
+        if (t.isHot(hotThreshold) && shouldRefresh(t, System.currentTimeMillis())) {
+            submit(key, t);
+        }
+    }
+
+    /**
+     * 记录一次返回逻辑过期旧数据
+     * @param staleMillis 已过期的时长
+     */
+    public void onStale(long staleMillis) {
+        staleSummary.record(staleMillis);
+    }
+
+    /**
+     * 定时检查热点key，即使在两次访问之间也能按时提前重建
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.refresh-ahead.scan-interval:PT1S}")
+    public void scan() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        tracked.forEach((key, t) -> {
+            if (t.isHot(hotThreshold) && shouldRefresh(t, now)) {
+                submit(key, t);
+            }
+        });
+    }
+
+    /**
+     * 滚动统计窗口，上一个窗口没有被访问的冷key不再跟踪
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.refresh-ahead.window:PT10S}")
+    public void rotateWindow() {
+        if (!enabled) {
+            return;
+        }
+        tracked.entrySet().removeIf(e -> {
+            Tracked t = e.getValue();
+            t.lastWindowHits = t.hits.sumThenReset();
+            return t.lastWindowHits == 0;
+        });
+    }
+
+    private boolean shouldRefresh(Tracked t, long now) {
+        if (now < t.retryAt) {
+            return false;
+        }
+        double random = ThreadLocalRandom.current().nextDouble();
+        // -ln(rand) 服从指数分布，均值为1
+        double gap = t.deltaMillis * beta * -Math.log(random);
+        return now + gap >= t.expireMillis;
+    }
+
+    /**
+     * 交给共用的重建线程池，已在重建或队列已满时放弃本次提前刷新，过期后由读请求触发重建
+     */
+    private void submit(String key, Tracked t) {
+        rebuildExecutor.submit(key, () -> refresh(t));
+    }
+
+    private void refresh(Tracked t) {
+        long begin = System.nanoTime();
+        long expireMillis = t.rebuild.getAsLong();
+        if (expireMillis > 0) {
+            long cost = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+            t.expireMillis = expireMillis;
+            t.deltaMillis = t.deltaMillis * 0.7 + cost * 0.3;
+            rebuildTimer.record(cost, TimeUnit.MILLISECONDS);
+            rebuildCounter.increment();
+            t.failures = 0;
+            t.retryAt = 0;
+        } else {
+            // 过期时间没有变化，不退避的话每次扫描都会重新提交
+            t.retryAt = System.currentTimeMillis() + (retryBackoff.toMillis() << Math.min(t.failures, 5));
+            t.failures++;
+        }
+    }
+
+    private static class Tracked {
+        private final LongAdder hits = new LongAdder();
+        private volatile long lastWindowHits;
+        private volatile long expireMillis;
+        /**
+         * 重建耗时的滑动平均值
+         */
+        private volatile double deltaMillis;
+        private volatile LongSupplier rebuild;
+        /**
+         * 连续没有重建成功的次数，以及下一次可以提前刷新的时间
+         */
+        private volatile int failures;
+        private volatile long retryAt;
+
+        Tracked(long initialDeltaMillis) {
+            this.deltaMillis = initialDeltaMillis;
+        }
+
+        boolean isHot(long threshold) {
+            return lastWindowHits >= threshold || hits.sum() >= threshold;
+        }
+    }
+}
@@ -4,8 +4,9 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.Map;
@@ -18,7 +19,7 @@ import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
  * @author hyh
  * @date 2024/4/10
  */
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     //这里不能使用@Resource、@Autowired注解来注入redis对象，需要使用构造函数
     //因为这个类的对象是我们手动new出来的（在MvcConfig），不是通过Component等注解创建的，也就是不是由Spring创建的
@@ -31,6 +32,10 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //异步请求完成后分派回来只写出结果，首次分派时已经校验并刷新过token
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            return true;
+        }
         //1、获取请求头中的token
         String token = request.getHeader("authorization");
         if (StrUtil.isBlank(token)) {
@@ -67,4 +72,10 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
         UserHolder.removeUser();
     }
+
+    //异步请求开始后tomcat线程立即返回线程池，不会执行afterCompletion，需要在这里清除用户
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
 }
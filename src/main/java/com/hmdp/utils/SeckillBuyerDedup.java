@@ -0,0 +1,49 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 秒杀一人一单的去重结构，秒杀脚本按mode选择：
+ * set：seckill:order:{voucherId}集合保存用户id字符串，每个用户几十字节，百万用户的秒杀券占用几十MB
+ * bitmap：seckill:buyers:bitmap:{voucherId}，用户id作为偏移量SETBIT，内存取决于最大的用户id（每个id 1 bit），适合自增的用户id，
+ *        偏移量不小于maxBitmapOffset的用户退回set，避免个别很大的用户id让一个bitmap分配几百MB
+ * bucket：seckill:buyers:bucket:{voucherId}:b{userId / bucketSize}，按用户id分段的小hash，
+ *        每个hash不超过bucketSize个字段，保持listpack紧凑编码，内存只和购买人数有关
+ * 去重key在秒杀券结束时间之后retainAfterEnd过期，结束时间来自秒杀券元数据缓存
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Component
+public class SeckillBuyerDedup {
+    @Value("${hmdp.seckill.dedup.mode:set}")
+    private String mode;
+    /**
+     * bucket模式每个小hash的用户数，不要超过redis的hash-max-listpack-entries（默认128）
+     */
+    @Value("${hmdp.seckill.dedup.bucket-size:100}")
+    private int bucketSize;
+    /**
+     * bitmap模式偏移量的上限，默认2^24，单个bitmap最多2MB
+     */
+    @Value("${hmdp.seckill.dedup.bitmap-max-offset:16777216}")
+    private long maxBitmapOffset;
+    /**
+     * 秒杀结束后去重key保留的时间，便于对账和排查
+     */
+    @Value("${hmdp.seckill.dedup.retain-after-end:P1D}")
+    private Duration retainAfterEnd;
+
+    /**
+     * 传给秒杀脚本的参数：去重模式、bucket大小、bitmap偏移量上限、过期时间（秒级时间戳，0表示不过期）
+     * @param endTime 秒杀结束时间（毫秒时间戳），Long.MAX_VALUE表示没有结束时间
+     */
+    public String[] scriptArgs(long endTime) {
+        long expireAt = endTime == Long.MAX_VALUE ? 0L : endTime / 1000 + retainAfterEnd.getSeconds();
+        return new String[]{mode, String.valueOf(bucketSize), String.valueOf(maxBitmapOffset),
+                String.valueOf(expireAt)};
+    }
+}
@@ -0,0 +1,256 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_HOLDERS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀库存租用
+ * 每个节点一次从seckill:stock:{voucherId}原子地租用一段库存（seckill_lease.lua），在本地用原子变量无锁扣减，
+ * 本地租到的库存用完时再租下一段；租约到期或应用关闭时把没用完的库存还给redis，其他节点可以继续租用
+ * 一人一单仍在redis中检查，秒杀脚本不再检查和扣减库存；重复下单等失败时本地扣减的库存直接还给redis
+ * 节点异常退出时没有归还的库存需要对账修复，只建议在库存很大、请求集中的秒杀券上开启；库存分片的秒杀券不使用租用
+ * 秒杀脚本不再返回库存不足，租用时redis库存为0、且没有节点持有未到期的租约，才在本地标记售罄（不广播，每个节点各自判断）
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Slf4j
+@Component
+public class SeckillStockLeases {
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_lease_node.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+    private final MeterRegistry meterRegistry;
+    private final SoldOutRegistry soldOutRegistry;
+    /**
+     * 本节点在租约持有者集合中的id
+     */
+    private final String nodeId = UUID.randomUUID().toString(true);
+
+    @Value("${hmdp.seckill.stock.lease.enabled:false}")
+    private boolean enabled;
+    /**
+     * 每次租用的库存数
+     */
+    @Value("${hmdp.seckill.stock.lease.chunk:50}")
+    private int chunk;
+    /**
+     * 租约有效期，到期后归还没用完的库存
+     */
+    @Value("${hmdp.seckill.stock.lease.ttl:PT5S}")
+    private Duration ttl;
+    @Value("${hmdp.seckill.stock.lease.check-interval:PT1S}")
+    private Duration checkInterval;
+
+    /**
+     * 优惠券id -> 本节点当前的租约
+     */
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+    /**
+     * 优惠券id -> 正在从redis租用的下一段，同一个优惠券同时只有一个请求去租用，其他请求等待同一个结果
+     */
+    private final Map<Long, CompletableFuture<Lease>> leasing = new ConcurrentHashMap<>();
+
+    private Counter leaseCounter;
+
+    public SeckillStockLeases(StringRedisTemplate stringRedisTemplate,
+                              ReactiveStringRedisTemplate reactiveStringRedisTemplate,
+                              MeterRegistry meterRegistry,
+                              SoldOutRegistry soldOutRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.reactiveStringRedisTemplate = reactiveStringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+        this.soldOutRegistry = soldOutRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        leaseCounter = meterRegistry.counter("seckill.stock.leases");
+        meterRegistry.gauge("seckill.stock.leased", leases,
+                map -> map.values().stream().mapToInt(lease -> Math.max(0, lease.remaining.get())).sum());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 秒杀结束后所有节点最晚在这个时间之前归还租约，之后redis中的库存不再缺少租出去的部分
+     */
+    public LocalDateTime returnedAfter(LocalDateTime endTime) {
+        return endTime.plus(ttl).plus(checkInterval);
+    }
+
+    /**
+     * 本地扣减一个库存，本地租到的库存用完时从redis再租一段，在调用线程上等待租用结果
+     * @return false表示redis中也没有库存了
+     */
+    public boolean tryAcquire(Long voucherId) {
+        return tryAcquireAsync(voucherId).join();
+    }
+
+    /**
+     * 本地扣减一个库存；本地租到的库存用完时通过异步连接从redis再租一段，不占用调用线程
+     * 租用在锁之外进行，不会阻塞其他优惠券；结果可能在lettuce的IO线程上完成
+     * @return 结果为false表示redis中也没有库存了
+     */
+    public CompletableFuture<Boolean> tryAcquireAsync(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null && lease.tryTake()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return renew(voucherId, lease).thenCompose(next -> next == null
+                ? CompletableFuture.completedFuture(false)
+                // 新租到的库存可能已经被其他请求扣完，重新尝试
+                : tryAcquireAsync(voucherId));
+    }
+
+    /**
+     * 当前租约用完后租用下一段；已经有请求在租用时等待它的结果
+     * @param exhausted 调用方看到的已经用完的租约
+     * @return 新的租约，redis中没有库存时为null
+     */
+    private CompletableFuture<Lease> renew(Long voucherId, Lease exhausted) {
+        CompletableFuture<Lease> pending = new CompletableFuture<>();
+        CompletableFuture<Lease> existing = leasing.putIfAbsent(voucherId, pending);
+        if (existing != null) {
+            return existing;
+        }
+        Lease current = leases.get(voucherId);
+        if (current != null && current != exhausted) {
+            // 其他请求已经租到了新的一段
+            leasing.remove(voucherId, pending);
+            pending.complete(current);
+            return pending;
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + ttl.toMillis();
+        reactiveStringRedisTemplate.execute(LEASE_SCRIPT,
+                        Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_LEASE_HOLDERS_KEY + voucherId),
+                        Arrays.asList(String.valueOf(chunk), nodeId, String.valueOf(expiresAt), String.valueOf(now)))
+                .next().toFuture()
+                .whenComplete((leased, e) -> {
+                    Lease next = null;
+                    if (e == null && leased != null && leased > 0) {
+                        leaseCounter.increment();
+                        next = new Lease(leased.intValue(), expiresAt);
+                        leases.put(voucherId, next);
+                    } else if (e == null && leased != null && leased < 0) {
+                        // 没有库存也没有节点持有租约，本地短暂标记售罄，之后的请求不再访问redis
+                        soldOutRegistry.markSoldOutLocally(voucherId, ttl);
+                    }
+                    leasing.remove(voucherId, pending);
+                    if (e != null) {
+                        pending.completeExceptionally(e);
+                    } else {
+                        pending.complete(next);
+                    }
+                });
+        return pending;
+    }
+
+    /**
+     * 归还一个已经在本地扣减的库存（重复下单、不在秒杀时间内等）
+     * 直接加回redis而不是本地租约，租约可能已经归还；异步发送，可以在lettuce的IO线程上调用
+     */
+    public void release(Long voucherId) {
+        reactiveStringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId)
+                .subscribe(null, e -> log.error("归还库存失败, voucherId = {}", voucherId, e));
+    }
+
+    /**
+     * 归还到期租约中没用完的库存
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.stock.lease.check-interval:PT1S}")
+    public void returnExpired() {
+        long now = System.currentTimeMillis();
+        leases.forEach((voucherId, lease) -> {
+            if (lease.expiresAt <= now && leases.remove(voucherId, lease)) {
+                giveBack(voucherId, lease);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void returnAll() {
+        leases.forEach((voucherId, lease) -> {
+            if (leases.remove(voucherId, lease)) {
+                giveBack(voucherId, lease);
+            }
+        });
+    }
+
+    private void giveBack(Long voucherId, Lease lease) {
+        int unused = lease.retire();
+        try {
+            // 先归还库存再退出持有者集合，其他节点看到没有持有者时一定也能看到归还的库存
+            if (unused > 0) {
+                stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, unused);
+            }
+            stringRedisTemplate.opsForZSet().remove(SECKILL_LEASE_HOLDERS_KEY + voucherId, nodeId);
+        } catch (Exception e) {
+            log.error("归还租用的库存失败, voucherId = {}, unused = {}", voucherId, unused, e);
+        }
+    }
+
+    private static class Lease {
+        private final AtomicInteger remaining;
+        private final long expiresAt;
+
+        Lease(int stock, long expiresAt) {
+            this.remaining = new AtomicInteger(stock);
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * CAS扣减一个库存，不会减到负数
+         */
+        boolean tryTake() {
+            while (true) {
+                int r = remaining.get();
+                if (r <= 0) {
+                    return false;
+                }
+                if (remaining.compareAndSet(r, r - 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 取走剩余的全部库存，之后tryTake都会失败
+         */
+        int retire() {
+            return remaining.getAndSet(0);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.LOCK_RECONCILE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_BITMAP_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RECONCILE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀库存对账
+ * redis一侧（剩余库存 + 已购买用户数）和数据库一侧（tb_seckill_voucher.stock + tb_voucher_order订单数）各自在一次原子操作中变化，
+ * 正常情况下二者之和都等于总库存，和正在入库的订单无关，可以在秒杀进行中对账；差值（drift）来自入库失败的订单、
+ * 消费者异常、节点异常退出时没有归还的租用库存、手工修改等
+ * 每次对账分两步：
+ * 1.增量检查用户：按订单id游标分页读取settle之前生成的订单（idx_voucher_id索引），检查用户是否都在redis的去重结构中，
+ *   游标和游标之前的订单数保存在seckill:reconcile:{voucherId}，每次最多读取maxPages页，下次从游标继续
+ * 2.比较两侧之和，发布差值指标；数据库订单数 = 已累加的订单数 + 游标之后的订单数，不会每次重新统计全部订单；
+ *   连续两次差值相同时按差值修正redis库存
+ *   分片的秒杀券每个分片在各自的slot中原子读取再相加，跨分片借用、再平衡的间隙可能出现瞬时差值，同样由连续两次比较过滤
+ * 默认只发布指标，repair开启后才补写缺失的用户和修正库存；多个节点通过分布式锁保证同一时间只有一个节点对账
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+    private static final DefaultRedisScript<List> COUNT_SCRIPT;
+    private static final DefaultRedisScript<List> BUYERS_SCRIPT;
+
+    static {
+        COUNT_SCRIPT = new DefaultRedisScript<>();
+        COUNT_SCRIPT.setLocation(new ClassPathResource("seckill_reconcile.lua"));
+        COUNT_SCRIPT.setResultType(List.class);
+        BUYERS_SCRIPT = new DefaultRedisScript<>();
+        BUYERS_SCRIPT.setLocation(new ClassPathResource("seckill_buyers.lua"));
+        BUYERS_SCRIPT.setResultType(List.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillVoucherMapper seckillVoucherMapper;
+    private final VoucherOrderMapper voucherOrderMapper;
+    private final SeckillStockShards seckillStockShards;
+    private final SeckillStockLeases seckillStockLeases;
+    private final SeckillBuyerDedup seckillBuyerDedup;
+    private final SoldOutRegistry soldOutRegistry;
+    private final RedissonClient redissonClient;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.reconcile.enabled:false}")
+    private boolean enabled;
+    /**
+     * 是否补写缺失的用户和修正redis库存，关闭时只发布指标
+     */
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+    @Value("${hmdp.seckill.reconcile.page-size:500}")
+    private int pageSize;
+    /**
+     * 每个秒杀券每次对账最多检查的订单页数
+     */
+    @Value("${hmdp.seckill.reconcile.max-pages:20}")
+    private int maxPages;
+    /**
+     * 只检查这个时间之前生成的订单，应大于订单消费的最大延迟
+     */
+    @Value("${hmdp.seckill.reconcile.settle:PT1M}")
+    private Duration settle;
+    /**
+     * 秒杀结束后继续对账的时间，不能超过去重key的保留时间（hmdp.seckill.dedup.retain-after-end）
+     */
+    @Value("${hmdp.seckill.reconcile.lookback:PT1H}")
+    private Duration lookback;
+
+    /**
+     * 优惠券id -> 最近一次对账结果
+     */
+    private final Map<Long, Drift> drifts = new ConcurrentHashMap<>();
+
+    private Counter missingBuyers;
+    private Counter repairedBuyers;
+    private Counter repairedStock;
+
+    public SeckillStockReconciler(StringRedisTemplate stringRedisTemplate,
+                                  SeckillVoucherMapper seckillVoucherMapper,
+                                  VoucherOrderMapper voucherOrderMapper,
+                                  SeckillStockShards seckillStockShards,
+                                  SeckillStockLeases seckillStockLeases,
+                                  SeckillBuyerDedup seckillBuyerDedup,
+                                  SoldOutRegistry soldOutRegistry,
+                                  RedissonClient redissonClient,
+                                  MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillVoucherMapper = seckillVoucherMapper;
+        this.voucherOrderMapper = voucherOrderMapper;
+        this.seckillStockShards = seckillStockShards;
+        this.seckillStockLeases = seckillStockLeases;
+        this.seckillBuyerDedup = seckillBuyerDedup;
+        this.soldOutRegistry = soldOutRegistry;
+        this.redissonClient = redissonClient;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        missingBuyers = meterRegistry.counter("seckill.reconcile.buyers.missing");
+        repairedBuyers = meterRegistry.counter("seckill.reconcile.repaired", "type", "buyer");
+        repairedStock = meterRegistry.counter("seckill.reconcile.repaired", "type", "stock");
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval:PT30S}")
+    public void reconcileAll() {
+        if (!enabled) {
+            return;
+        }
+        RLock lock = redissonClient.getLock(LOCK_RECONCILE_KEY);
+        if (!lock.tryLock()) {
+            // 其他节点正在对账
+            return;
+        }
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            Set<Long> active = new HashSet<>();
+            // 按主键分页读取已开始、结束不超过lookback的秒杀券
+            long lastId = 0;
+            while (true) {
+                List<SeckillVoucher> page = seckillVoucherMapper.selectList(new QueryWrapper<SeckillVoucher>()
+                        .gt("voucher_id", lastId).le("begin_time", now).gt("end_time", now.minus(lookback))
+                        .orderByAsc("voucher_id").last("limit " + pageSize));
+                for (SeckillVoucher voucher : page) {
+                    active.add(voucher.getVoucherId());
+                    try {
+                        reconcile(voucher, now);
+                    } catch (Exception e) {
+                        log.error("秒杀库存对账失败, voucherId = {}", voucher.getVoucherId(), e);
+                    }
+                }
+                if (page.size() < pageSize) {
+                    break;
+                }
+                lastId = page.get(page.size() - 1).getVoucherId();
+            }
+            // 不再对账的秒杀券移除指标
+            drifts.entrySet().removeIf(entry -> {
+                if (active.contains(entry.getKey())) {
+                    return false;
+                }
+                entry.getValue().meters.forEach(meterRegistry::remove);
+                return true;
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reconcile(SeckillVoucher voucher, LocalDateTime now) {
+        Long voucherId = voucher.getVoucherId();
+        int shards = seckillStockShards.shardsOf(voucherId);
+        String[] dedup = seckillBuyerDedup.scriptArgs(
+                voucher.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        // 1.增量检查已入库订单的用户，先补写用户再比较两侧之和
+        checkBuyers(voucherId, shards, dedup, now);
+
+        // 2.比较redis和数据库两侧的库存与订单数之和，分片的秒杀券逐个分片读取（每个分片一个slot）再相加
+        long redisStock = 0;
+        long redisBuyers = 0;
+        for (String tag : seckillStockShards.shardTags(voucherId, shards)) {
+            List<?> redis = stringRedisTemplate.execute(COUNT_SCRIPT,
+                    Arrays.asList(SECKILL_STOCK_KEY + tag, SECKILL_ORDER_KEY + tag, SECKILL_BITMAP_KEY + tag));
+            if (redis == null || ((Number) redis.get(2)).intValue() == 0) {
+                // redis库存还没有初始化，等待预热
+                return;
+            }
+            redisStock += ((Number) redis.get(0)).longValue();
+            redisBuyers += ((Number) redis.get(1)).longValue();
+        }
+        if ("bucket".equals(dedup[0])) {
+            // bucket模式的用户分散在不固定的多个hash中，不统计用户数
+            redisBuyers = -1;
+        }
+        // 游标之前的订单已经累加过，只统计游标之后的订单
+        List<Object> progress = stringRedisTemplate.opsForHash()
+                .multiGet(SECKILL_RECONCILE_KEY + voucherId, Arrays.asList("cursor", "orders"));
+        long cursor = progress.get(0) == null ? 0L : Long.parseLong(progress.get(0).toString());
+        long counted = progress.get(1) == null ? 0L : Long.parseLong(progress.get(1).toString());
+        Map<String, Object> db = voucherOrderMapper.selectStockAndOrdersAfter(voucherId, cursor);
+        if (db == null) {
+            return;
+        }
+        long dbStock = ((Number) db.get("stock")).longValue();
+        long dbOrders = counted + ((Number) db.get("orders")).longValue();
+
+        Drift drift = drifts.computeIfAbsent(voucherId, this::register);
+        double previous = drift.drift;
+        drift.redisStock = redisStock;
+        drift.redisBuyers = redisBuyers;
+        drift.dbStock = dbStock;
+        drift.dbOrders = dbOrders;
+        if (redisBuyers < 0) {
+            // bucket模式不统计用户数，无法比较
+            drift.drift = Double.NaN;
+            return;
+        }
+        long diff = redisStock + redisBuyers - (dbStock + dbOrders);
+        drift.drift = diff;
+        if (diff == 0) {
+            return;
+        }
+        log.warn("秒杀库存不一致, voucherId = {}, redis: stock = {}, buyers = {}, db: stock = {}, orders = {}",
+                voucherId, redisStock, redisBuyers, dbStock, dbOrders);
+        // 连续两次差值相同才修正，避免补充库存等两侧先后更新的操作造成的瞬时差值
+        if (!repair || previous != diff) {
+            return;
+        }
+        // 租用库存时redis中缺少各节点租出去还没用完的部分，等秒杀结束、租约全部归还后再修正
+        if (shards <= 1 && seckillStockLeases.isEnabled()
+                && now.isBefore(seckillStockLeases.returnedAfter(voucher.getEndTime()))) {
+            return;
+        }
+        seckillStockShards.add(voucherId, (int) -diff);
+        if (diff < 0) {
+            soldOutRegistry.clear(voucherId);
+        }
+        repairedStock.increment(Math.abs(diff));
+        drift.drift = 0;
+        log.warn("已修正redis库存, voucherId = {}, delta = {}", voucherId, -diff);
+    }
+
+    /**
+     * 从游标开始分页检查settle之前生成的订单，用户不在redis去重结构中时记录（并补写），同时累加游标之前的订单数
+     * settle之前的订单不会再插入，订单也不会删除，游标之前的订单数累加后不再变化
+     */
+    private void checkBuyers(Long voucherId, int shards, String[] dedup, LocalDateTime now) {
+        String key = SECKILL_RECONCILE_KEY + voucherId;
+        List<Object> saved = stringRedisTemplate.opsForHash().multiGet(key, Arrays.asList("cursor", "orders"));
+        long cursor = saved.get(0) == null ? 0L : Long.parseLong(saved.get(0).toString());
+        long counted = saved.get(1) == null ? 0L : Long.parseLong(saved.get(1).toString());
+        long settled = RedisIdWorker.minIdAt(now.minus(settle));
+        for (int i = 0; i < maxPages && cursor < settled; i++) {
+            List<VoucherOrder> orders = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId).gt("id", cursor).lt("id", settled)
+                    .orderByAsc("id").last("limit " + pageSize));
+            if (orders.isEmpty()) {
+                break;
+            }
+            // 按用户所在分片分组，每个分片一次脚本调用
+            List<String> tags = seckillStockShards.shardTags(voucherId, shards);
+            Map<Integer, List<String>> usersByShard = new HashMap<>();
+            for (VoucherOrder order : orders) {
+                usersByShard.computeIfAbsent((int) Math.floorMod(order.getUserId(), (long) tags.size()),
+                        k -> new ArrayList<>()).add(order.getUserId().toString());
+            }
+            List<Object> missing = new ArrayList<>();
+            usersByShard.forEach((shard, users) -> {
+                String tag = tags.get(shard);
+                List<String> args = new ArrayList<>(users.size() + 7);
+                Collections.addAll(args, tag, String.valueOf(shards), dedup[0], dedup[1], dedup[2],
+                        dedup[3], repair ? "1" : "0");
+                args.addAll(users);
+                List<?> result = stringRedisTemplate.execute(BUYERS_SCRIPT,
+                        Collections.singletonList(SECKILL_ORDER_KEY + tag), args.toArray());
+                if (result != null) {
+                    missing.addAll(result);
+                }
+            });
+            if (!missing.isEmpty()) {
+                missingBuyers.increment(missing.size());
+                if (repair) {
+                    repairedBuyers.increment(missing.size());
+                }
+                log.warn("已入库订单的用户不在redis中, voucherId = {}, users = {}, repaired = {}",
+                        voucherId, missing, repair);
+            }
+            cursor = orders.get(orders.size() - 1).getId();
+            counted += orders.size();
+            // 每页同时保存游标和订单数，中断后从这里继续
+            Map<String, String> progress = new HashMap<>(2);
+            progress.put("cursor", String.valueOf(cursor));
+            progress.put("orders", String.valueOf(counted));
+            stringRedisTemplate.opsForHash().putAll(key, progress);
+            stringRedisTemplate.expire(key, lookback.plus(settle));
+            if (orders.size() < pageSize) {
+                break;
+            }
+        }
+    }
+
+    private Drift register(Long voucherId) {
+        Drift drift = new Drift();
+        Tags tags = Tags.of("voucher", voucherId.toString());
+        drift.meters.add(Gauge.builder("seckill.reconcile.redis.stock", drift, d -> d.redisStock)
+                .tags(tags).register(meterRegistry).getId());
+        drift.meters.add(Gauge.builder("seckill.reconcile.redis.buyers", drift, d -> d.redisBuyers)
+                .tags(tags).register(meterRegistry).getId());
+        drift.meters.add(Gauge.builder("seckill.reconcile.db.stock", drift, d -> d.dbStock)
+                .tags(tags).register(meterRegistry).getId());
+        drift.meters.add(Gauge.builder("seckill.reconcile.db.orders", drift, d -> d.dbOrders)
+                .tags(tags).register(meterRegistry).getId());
+        drift.meters.add(Gauge.builder("seckill.reconcile.drift", drift, d -> d.drift)
+                .description("redis库存与用户数之和减去数据库库存与订单数之和").tags(tags).register(meterRegistry).getId());
+        return drift;
+    }
+
+    private static class Drift {
+        private final List<Meter.Id> meters = new ArrayList<>(5);
+        private volatile long redisStock;
+        private volatile long redisBuyers;
+        private volatile long dbStock;
+        private volatile long dbOrders;
+        private volatile double drift;
+    }
+}
@@ -0,0 +1,379 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存分片
+ * 库存很大的秒杀券在创建时把库存拆分到多个子key（seckill:stock:{stream.orders.p}:voucherId:i），一人一单的去重key也按用户id取模拆分，
+ * 第i个分片对应第(voucherId + i) % partitions个订单stream分区，分片的库存key、去重key都以这个stream的名称作为hash tag，
+ * 与stream落在同一个slot；每次脚本调用只访问一个分片和它的stream，所有key通过KEYS传入，秒杀时间由调用方在本地检查
+ * 在Redis Cluster上，订单stream分区数不少于分片数时各分片落在不同的slot，可以分布在不同的节点上；分区数为1时所有分片共用一个slot
+ * 分片与分区的对应关系取决于分区数，修改hmdp.seckill.order.partitions前需要等已分片的秒杀券结束
+ * 用户所在分片库存不足时，在客户端依次从其他分片借一个库存，再带上已借到的标记在用户所在分片下单；
+ * 定时把剩余库存重新平均分配到各分片，减少售卖后期的借用；再平衡只在持有分布式锁的节点上执行，售罄的秒杀券不再检查，补充库存时重新加入
+ * 分片数保存在seckill:shards:{voucherId}，没有该key的秒杀券仍使用单个库存key
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Slf4j
+@Component
+public class SeckillStockShards {
+    private static final DefaultRedisScript<Long> SECKILL_SHARDED_SCRIPT;
+    private static final DefaultRedisScript<Long> TAKE_SCRIPT;
+
+    static {
+        SECKILL_SHARDED_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARDED_SCRIPT.setLocation(new ClassPathResource("seckill_sharded.lua"));
+        SECKILL_SHARDED_SCRIPT.setResultType(Long.class);
+        TAKE_SCRIPT = new DefaultRedisScript<>();
+        TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        TAKE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+    private final RedissonClient redissonClient;
+
+    /**
+     * 新建秒杀券的分片数，1表示不分片
+     */
+    @Value("${hmdp.seckill.stock.shards:1}")
+    private int shards;
+    /**
+     * 每个分片至少分到的库存，库存较小的秒杀券少分片或不分片
+     */
+    @Value("${hmdp.seckill.stock.min-stock-per-shard:100}")
+    private int minStockPerShard;
+    /**
+     * 订单stream的分区数，决定各分片的hash tag
+     */
+    @Value("${hmdp.seckill.order.partitions:1}")
+    private int partitions;
+
+    /**
+     * 优惠券id -> 分片数
+     */
+    private final Map<Long, Integer> shardsOfVoucher = new ConcurrentHashMap<>();
+
+    public SeckillStockShards(StringRedisTemplate stringRedisTemplate,
+                              ReactiveStringRedisTemplate reactiveStringRedisTemplate,
+                              RedissonClient redissonClient) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.reactiveStringRedisTemplate = reactiveStringRedisTemplate;
+        this.redissonClient = redissonClient;
+    }
+
+    /**
+     * 创建秒杀券时初始化redis库存，按配置决定是否分片
+     */
+    public void init(Long voucherId, int stock) {
+        int k = Math.max(1, Math.min(shards, stock / Math.max(1, minStockPerShard)));
+        if (k <= 1) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            shardsOfVoucher.put(voucherId, 1);
+            return;
+        }
+        for (int i = 0; i < k; i++) {
+            int shardStock = stock / k + (i < stock % k ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(shardKey(voucherId, i), String.valueOf(shardStock));
+        }
+        stringRedisTemplate.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(k));
+        stringRedisTemplate.opsForSet().add(SECKILL_SHARDS_ACTIVE_KEY, voucherId.toString());
+        shardsOfVoucher.put(voucherId, k);
+    }
+
+    /**
+     * 补充库存，分片的秒杀券加到第一个分片后立即再平衡，并重新加入定时再平衡
+     */
+    public void add(Long voucherId, int count) {
+        int k = shardsOf(voucherId);
+        if (k <= 1) {
+            stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, count);
+            return;
+        }
+        stringRedisTemplate.opsForValue().increment(shardKey(voucherId, 0), count);
+        stringRedisTemplate.opsForSet().add(SECKILL_SHARDS_ACTIVE_KEY, voucherId.toString());
+        rebalance(voucherId, k);
+    }
+
+    /**
+     * 分片数，不分片返回1
+     */
+    public int shardsOf(Long voucherId) {
+        return shardsOfVoucher.computeIfAbsent(voucherId, id -> {
+            String value = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + id);
+            return value == null ? 1 : Integer.parseInt(value);
+        });
+    }
+
+    /**
+     * 批量判断是否分片，用于预热时跳过分片的秒杀券
+     */
+    public Set<Long> shardedOf(Collection<Long> voucherIds) {
+        List<Long> ids = new ArrayList<>(voucherIds);
+        List<String> keys = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            keys.add(SECKILL_SHARDS_KEY + id);
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        Set<Long> sharded = new HashSet<>();
+        for (int i = 0; values != null && i < ids.size(); i++) {
+            if (values.get(i) != null && Integer.parseInt(values.get(i)) > 1) {
+                sharded.add(ids.get(i));
+            }
+        }
+        return sharded;
+    }
+
+    /**
+     * 执行分片秒杀：先在用户所在分片下单，库存不足时依次从其他分片借一个库存再下单
+     * 订单消息写入用户所在分片对应的stream分区
+     * @param shards 分片数，由调用方通过shardsOf取得，异步调用时不在IO线程上查询redis
+     * @param extraArgs 去重模式、bucket大小、bitmap偏移量上限、去重key过期时间，与单库存脚本相同，之后的参数不使用
+     * @return 0成功，1库存不足，2重复下单
+     */
+    public Long seckill(Long voucherId, int shards, Long userId, long orderId, String... extraArgs) {
+        int home = (int) Math.floorMod(userId, (long) shards);
+        List<String> keys = seckillKeys(voucherId, shards, home, userId, extraArgs);
+        Long result = stringRedisTemplate.execute(SECKILL_SHARDED_SCRIPT, keys,
+                seckillArgs(voucherId, shards, userId, orderId, false, extraArgs).toArray());
+        if (result == null || result != 1) {
+            return result;
+        }
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            Long taken = stringRedisTemplate.execute(TAKE_SCRIPT,
+                    Collections.singletonList(shardKey(voucherId, shard)), "1");
+            if (taken != null && taken > 0) {
+                result = stringRedisTemplate.execute(SECKILL_SHARDED_SCRIPT, keys,
+                        seckillArgs(voucherId, shards, userId, orderId, true, extraArgs).toArray());
+                if (result == null || result != 0) {
+                    // 重复下单或不在秒杀时间内，借到的库存还回去
+                    giveBack(voucherId, shard);
+                }
+                return result;
+            }
+        }
+        return 1L;
+    }
+
+    /**
+     * 通过lettuce的异步连接执行分片秒杀，参数和返回值与seckill相同；回调中只使用异步命令，不阻塞IO线程
+     */
+    public CompletableFuture<Long> seckillAsync(Long voucherId, int shards, Long userId, long orderId,
+                                                String... extraArgs) {
+        int home = (int) Math.floorMod(userId, (long) shards);
+        List<String> keys = seckillKeys(voucherId, shards, home, userId, extraArgs);
+        return reactiveStringRedisTemplate.execute(SECKILL_SHARDED_SCRIPT, keys,
+                        seckillArgs(voucherId, shards, userId, orderId, false, extraArgs)).next().toFuture()
+                .thenCompose(result -> result == null || result != 1
+                        ? CompletableFuture.completedFuture(result)
+                        : borrowAsync(voucherId, shards, home, 1, keys,
+                                seckillArgs(voucherId, shards, userId, orderId, true, extraArgs)));
+    }
+
+    private CompletableFuture<Long> borrowAsync(Long voucherId, int shards, int home, int i, List<String> keys,
+                                                List<String> borrowedArgs) {
+        if (i >= shards) {
+            return CompletableFuture.completedFuture(1L);
+        }
+        int shard = (home + i) % shards;
+        return reactiveStringRedisTemplate.execute(TAKE_SCRIPT, Collections.singletonList(shardKey(voucherId, shard)),
+                        Collections.singletonList("1")).next().toFuture()
+                .thenCompose(taken -> {
+                    if (taken == null || taken <= 0) {
+                        return borrowAsync(voucherId, shards, home, i + 1, keys, borrowedArgs);
+                    }
+                    return reactiveStringRedisTemplate.execute(SECKILL_SHARDED_SCRIPT, keys, borrowedArgs)
+                            .next().toFuture()
+                            .thenApply(result -> {
+                                if (result == null || result != 0) {
+                                    giveBack(voucherId, shard);
+                                }
+                                return result;
+                            });
+                });
+    }
+
+    /**
+     * 用户所在分片的库存key、去重key和stream，三者在同一个slot
+     */
+    private List<String> seckillKeys(Long voucherId, int shards, int home, Long userId, String... extraArgs) {
+        String tag = shardTag(voucherId, home);
+        long idx = Math.floorDiv(userId, (long) shards);
+        String mode = dedupMode(idx, extraArgs);
+        String orderKey;
+        if ("bitmap".equals(mode)) {
+            orderKey = SECKILL_BITMAP_KEY + tag;
+        } else if ("bucket".equals(mode)) {
+            orderKey = SECKILL_BUCKET_KEY + tag + ":b" + idx / Integer.parseInt(extraArgs[1]);
+        } else {
+            orderKey = SECKILL_ORDER_KEY + tag;
+        }
+        return Arrays.asList(SECKILL_STOCK_KEY + tag, orderKey, shardStream(voucherId, home));
+    }
+
+    private List<String> seckillArgs(Long voucherId, int shards, Long userId, long orderId, boolean borrowed,
+                                     String... extraArgs) {
+        // 按用户id取模选择分片，bitmap和bucket去重用 用户id / 分片数 作为分片内的位置
+        long idx = Math.floorDiv(userId, (long) shards);
+        String mode = dedupMode(idx, extraArgs);
+        String position = "bitmap".equals(mode) ? String.valueOf(idx)
+                : "bucket".equals(mode) ? String.valueOf(idx % Integer.parseInt(extraArgs[1])) : "";
+        return Arrays.asList(voucherId.toString(), userId.toString(), String.valueOf(orderId), mode, position,
+                extraArgs[3], borrowed ? "1" : "0");
+    }
+
+    private static String dedupMode(long idx, String... extraArgs) {
+        // 超出bitmap偏移量上限的用户退回set
+        String mode = extraArgs[0];
+        return "bitmap".equals(mode) && idx >= Long.parseLong(extraArgs[2]) ? "set" : mode;
+    }
+
+    private void giveBack(Long voucherId, int shard) {
+        reactiveStringRedisTemplate.opsForValue().increment(shardKey(voucherId, shard))
+                .subscribe(null, e -> log.error("归还借用的分片库存失败, voucherId = {}, shard = {}", voucherId, shard, e));
+    }
+
+    /**
+     * 定时再平衡还有库存的分片秒杀券，同一时间只有一个节点执行
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.stock.rebalance-interval:PT1S}")
+    public void rebalanceAll() {
+        RLock lock = redissonClient.getLock(LOCK_REBALANCE_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            Set<String> active = stringRedisTemplate.opsForSet().members(SECKILL_SHARDS_ACTIVE_KEY);
+            if (active == null) {
+                return;
+            }
+            for (String id : active) {
+                Long voucherId = Long.valueOf(id);
+                try {
+                    int k = shardsOf(voucherId);
+                    if (k <= 1 || rebalance(voucherId, k) == 0) {
+                        // 已售罄，不再定时检查，补充库存时重新加入
+                        stringRedisTemplate.opsForSet().remove(SECKILL_SHARDS_ACTIVE_KEY, id);
+                    }
+                } catch (Exception e) {
+                    log.error("分片库存再平衡失败, voucherId = {}", voucherId, e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 有分片库存耗尽而总库存还有剩余时，把剩余库存平均分配到所有分片
+     * 每个分片单独操作：先从多出的分片原子地取走多余的库存，再按实际取到的数量加到不足的分片，期间卖出的库存不会被重复分配
+     * @return 剩余总库存
+     */
+    private long rebalance(Long voucherId, int k) {
+        List<String> keys = new ArrayList<>(k);
+        for (int i = 0; i < k; i++) {
+            keys.add(shardKey(voucherId, i));
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        long[] stock = new long[k];
+        long total = 0;
+        int empty = 0;
+        for (int i = 0; i < k; i++) {
+            String value = values == null ? null : values.get(i);
+            stock[i] = value == null ? 0 : Long.parseLong(value);
+            if (stock[i] > 0) {
+                total += stock[i];
+            } else {
+                empty++;
+            }
+        }
+        if (empty == 0 || total == 0) {
+            return total;
+        }
+        long taken = 0;
+        for (int i = 0; i < k; i++) {
+            long excess = stock[i] - target(total, k, i);
+            if (excess > 0) {
+                Long n = stringRedisTemplate.execute(TAKE_SCRIPT, Collections.singletonList(keys.get(i)),
+                        String.valueOf(excess));
+                taken += n == null ? 0 : n;
+            }
+        }
+        for (int i = 0; i < k && taken > 0; i++) {
+            long lack = Math.min(target(total, k, i) - stock[i], taken);
+            if (lack > 0) {
+                stringRedisTemplate.opsForValue().increment(keys.get(i), lack);
+                taken -= lack;
+            }
+        }
+        return total;
+    }
+
+    private static long target(long total, int k, int i) {
+        return total / k + (i < total % k ? 1 : 0);
+    }
+
+    /**
+     * 各分片库存、去重key的后缀，不分片时为优惠券id；对账时按分片逐个检查
+     */
+    public List<String> shardTags(Long voucherId, int shards) {
+        if (shards <= 1) {
+            return Collections.singletonList(voucherId.toString());
+        }
+        List<String> tags = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            tags.add(shardTag(voucherId, i));
+        }
+        return tags;
+    }
+
+    /**
+     * 各分片（不分片时为唯一的）库存key
+     */
+    public List<String> stockKeys(Long voucherId) {
+        List<String> keys = new ArrayList<>();
+        for (String tag : shardTags(voucherId, shardsOf(voucherId))) {
+            keys.add(SECKILL_STOCK_KEY + tag);
+        }
+        return keys;
+    }
+
+    /**
+     * 分片对应的订单stream分区，名称与VoucherOrderServiceImpl中的分区相同
+     */
+    private String shardStream(Long voucherId, int shard) {
+        if (partitions <= 1) {
+            return ORDER_STREAM_KEY;
+        }
+        return ORDER_STREAM_KEY + "." + Math.floorMod(voucherId + shard, (long) partitions);
+    }
+
+    /**
+     * 分片的key后缀：以分片对应的stream名称作为hash tag，同一分片的库存key、去重key和stream落在同一个slot
+     */
+    private String shardTag(Long voucherId, int shard) {
+        return "{" + shardStream(voucherId, shard) + "}:" + voucherId + ":" + shard;
+    }
+
+    private String shardKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + shardTag(voucherId, shard);
+    }
+}
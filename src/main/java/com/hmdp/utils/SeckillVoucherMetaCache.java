@@ -0,0 +1,160 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+
+/**
+ * 秒杀券元数据缓存
+ * 开始、结束时间写入redis hash（seckill:voucher:{voucherId}），秒杀脚本在同一次调用中原子地检查时间窗口；
+ * 本地用有界的Caffeine缓存保存不可变的元数据，时间窗口之外的请求直接在本地拒绝，不访问数据库和redis
+ * 本地没有时先读redis，redis也没有时回源数据库一次并写回redis
+ * 不存在的秒杀券单独缓存missingTtl，数量有上限，随机的券id不会让内存无限增长，也不会反复回源
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Component
+public class SeckillVoucherMetaCache {
+    private static final String BEGIN = "begin";
+    private static final String END = "end";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillVoucherMapper seckillVoucherMapper;
+
+    /**
+     * 不存在的秒杀券在本地缓存的时间
+     */
+    @Value("${hmdp.seckill.voucher.missing-ttl:PT10S}")
+    private Duration missingTtl;
+    /**
+     * 本地最多缓存的秒杀券数，存在和不存在的各自计数
+     */
+    @Value("${hmdp.seckill.voucher.max-size:10000}")
+    private long maxSize;
+
+    private Cache<Long, Meta> metas;
+    private Cache<Long, Boolean> missing;
+
+    public SeckillVoucherMetaCache(StringRedisTemplate stringRedisTemplate, SeckillVoucherMapper seckillVoucherMapper) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillVoucherMapper = seckillVoucherMapper;
+    }
+
+    @PostConstruct
+    private void init() {
+        metas = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .build();
+        missing = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(missingTtl)
+                .build();
+    }
+
+    /**
+     * 查询秒杀券元数据，秒杀券不存在时返回null
+     */
+    public Meta get(Long voucherId) {
+        Meta meta = metas.getIfPresent(voucherId);
+        if (meta != null || missing.getIfPresent(voucherId) != null) {
+            return meta;
+        }
+        meta = load(voucherId);
+        if (meta == null) {
+            missing.put(voucherId, Boolean.TRUE);
+            return null;
+        }
+        metas.put(voucherId, meta);
+        return meta;
+    }
+
+    /**
+     * 创建秒杀券时写入redis和本地快照
+     */
+    public void put(SeckillVoucher voucher) {
+        Meta meta = Meta.of(voucher);
+        stringRedisTemplate.opsForHash().putAll(SECKILL_VOUCHER_KEY + voucher.getVoucherId(), toHash(meta));
+        metas.put(voucher.getVoucherId(), meta);
+        missing.invalidate(voucher.getVoucherId());
+    }
+
+    /**
+     * redis hash中保存的字段，预热时批量写入也使用这个格式
+     */
+    public static Map<String, String> toHash(SeckillVoucher voucher) {
+        return toHash(Meta.of(voucher));
+    }
+
+    private static Map<String, String> toHash(Meta meta) {
+        Map<String, String> hash = new HashMap<>(2);
+        hash.put(BEGIN, String.valueOf(meta.beginTime));
+        hash.put(END, String.valueOf(meta.endTime));
+        return hash;
+    }
+
+    private Meta load(Long voucherId) {
+        String key = SECKILL_VOUCHER_KEY + voucherId;
+        Map<Object, Object> hash = stringRedisTemplate.opsForHash().entries(key);
+        if (hash.get(BEGIN) != null && hash.get(END) != null) {
+            return new Meta(Long.parseLong(hash.get(BEGIN).toString()), Long.parseLong(hash.get(END).toString()));
+        }
+        SeckillVoucher voucher = seckillVoucherMapper.selectById(voucherId);
+        if (voucher == null) {
+            return null;
+        }
+        Meta meta = Meta.of(voucher);
+        stringRedisTemplate.opsForHash().putAll(key, toHash(meta));
+        return meta;
+    }
+
+    /**
+     * 不可变的秒杀券元数据，时间为毫秒时间戳，没有设置的时间为0（开始时间）或Long.MAX_VALUE（结束时间）
+     */
+    public static final class Meta {
+        private final long beginTime;
+        private final long endTime;
+
+        private Meta(long beginTime, long endTime) {
+            this.beginTime = beginTime;
+            this.endTime = endTime;
+        }
+
+        private static Meta of(SeckillVoucher voucher) {
+            return new Meta(toMillis(voucher.getBeginTime(), 0L), toMillis(voucher.getEndTime(), Long.MAX_VALUE));
+        }
+
+        private static long toMillis(LocalDateTime time, long defaultValue) {
+            return time == null ? defaultValue : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+
+        public long getBeginTime() {
+            return beginTime;
+        }
+
+        public long getEndTime() {
+            return endTime;
+        }
+
+        public boolean notStarted(long now) {
+            return now < beginTime;
+        }
+
+        public boolean ended(long now) {
+            return now > endTime;
+        }
+    }
+}
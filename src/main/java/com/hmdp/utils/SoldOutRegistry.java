@@ -0,0 +1,149 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 秒杀券本地售罄标记
+ * 秒杀脚本第一次返回库存不足时在本地标记售罄，并通过pub/sub通知其他节点，之后的请求不再访问redis直接拒绝；
+ * 补充库存时清除所有节点的标记
+ * 标记有有效期，过期后重新由秒杀脚本判断，丢失的消息或乱序的消息（例如补库存之后才收到的售罄消息）最多影响一个有效期
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry {
+    private static final String SOLD_OUT = "soldOut";
+    private static final String RESTOCK = "restock";
+    private static final String SEPARATOR = "|";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.sold-out.enabled:false}")
+    private boolean enabled;
+    /**
+     * 售罄标记的有效期
+     */
+    @Value("${hmdp.seckill.sold-out.ttl:PT30S}")
+    private Duration ttl;
+
+    /**
+     * 优惠券id -> 标记过期时间
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    private Counter rejectedCounter;
+
+    public SoldOutRegistry(StringRedisTemplate stringRedisTemplate,
+                           ReactiveStringRedisTemplate reactiveStringRedisTemplate,
+                           RedisMessageListenerContainer listenerContainer,
+                           MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.reactiveStringRedisTemplate = reactiveStringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        rejectedCounter = meterRegistry.counter("seckill.sold-out.rejected");
+        meterRegistry.gauge("seckill.sold-out.vouchers", soldOut, Map::size);
+        if (!enabled) {
+            return;
+        }
+        listenerContainer.addMessageListener((message, pattern) ->
+                        onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 本地判断是否已售罄，售罄时记录一次拒绝
+     */
+    public boolean isSoldOut(Long voucherId) {
+        if (!enabled) {
+            return false;
+        }
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        rejectedCounter.increment();
+        return true;
+    }
+
+    /**
+     * 标记售罄并异步通知其他节点
+     * 异步秒杀在lettuce的IO线程上调用这个方法，不能在IO线程上同步等待redis
+     */
+    public void markSoldOut(Long voucherId) {
+        if (!enabled || soldOut.containsKey(voucherId)) {
+            return;
+        }
+        soldOut.put(voucherId, System.currentTimeMillis() + ttl.toMillis());
+        reactiveStringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + SEPARATOR + voucherId)
+                .subscribe(null, e -> log.warn("发送售罄消息失败, voucherId = {}", voucherId, e));
+    }
+
+    /**
+     * 只在本地标记售罄，不通知其他节点，用于各节点能够自行判断售罄的场景（例如库存租用）
+     * @param ttl 标记的有效期，一般比默认有效期短
+     */
+    public void markSoldOutLocally(Long voucherId, Duration ttl) {
+        if (!enabled) {
+            return;
+        }
+        soldOut.putIfAbsent(voucherId, System.currentTimeMillis() + ttl.toMillis());
+    }
+
+    /**
+     * 补充库存后清除所有节点的售罄标记
+     */
+    public void clear(Long voucherId) {
+        if (!enabled) {
+            return;
+        }
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, RESTOCK + SEPARATOR + voucherId);
+    }
+
+    private void onMessage(String body) {
+        int i = body.indexOf(SEPARATOR);
+        if (i < 0) {
+            return;
+        }
+        try {
+            Long voucherId = Long.valueOf(body.substring(i + 1));
+            if (SOLD_OUT.equals(body.substring(0, i))) {
+                soldOut.putIfAbsent(voucherId, System.currentTimeMillis() + ttl.toMillis());
+            } else {
+                soldOut.remove(voucherId);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("无法解析售罄消息: {}", body);
+        }
+    }
+}
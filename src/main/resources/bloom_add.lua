@@ -0,0 +1,12 @@
+-- 布隆过滤器添加：正在重建时同时写入临时key，和RENAME互斥，重建期间新增的数据不会在替换后丢失
+-- KEYS[1] 过滤器key
+-- KEYS[2] 重建中的临时key
+-- ARGV[i] 各哈希函数对应的位置
+local rebuilding = redis.call('exists', KEYS[2]) == 1
+for i = 1, #ARGV do
+    redis.call('setbit', KEYS[1], ARGV[i], 1)
+    if(rebuilding) then
+        redis.call('setbit', KEYS[2], ARGV[i], 1)
+    end
+end
+return 1
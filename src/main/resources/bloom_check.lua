@@ -0,0 +1,13 @@
+-- 布隆过滤器判断：key不存在（被删除、淘汰或主从切换丢失）时返回-1，由调用方放行并重建
+-- 否则任意一位为0返回0，全部为1返回1
+-- KEYS[1] 过滤器key
+-- ARGV[i] 各哈希函数对应的位置
+if(redis.call('exists', KEYS[1]) == 0) then
+    return -1
+end
+for i = 1, #ARGV do
+    if(redis.call('getbit', KEYS[1], ARGV[i]) == 0) then
+        return 0
+    end
+end
+return 1
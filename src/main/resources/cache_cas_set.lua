@@ -0,0 +1,14 @@
+-- 按版本号写入缓存：只有版本号没有变化时才写入，防止重建线程把更新前读到的旧数据写回缓存
+-- KEYS[1] 缓存key，KEYS[2] 版本号key
+-- ARGV[1] 查询数据库之前读到的版本号，ARGV[2] 缓存值，ARGV[3] 过期时间（毫秒），0表示不设置过期时间
+local version = redis.call('get', KEYS[2]) or '0'
+if (version ~= ARGV[1]) then
+    -- 期间数据被更新过，放弃写入
+    return 0
+end
+if (tonumber(ARGV[3]) > 0) then
+    redis.call('set', KEYS[1], ARGV[2], 'PX', ARGV[3])
+else
+    redis.call('set', KEYS[1], ARGV[2])
+end
+return 1
@@ -0,0 +1,10 @@
+-- 写入订单的最终状态并通知订阅者，已有状态时不覆盖（重复投递的消息不会把成功的订单改成失败）
+-- KEYS[1] 订单状态hash
+-- ARGV[1] 状态，ARGV[2] 用户id，ARGV[3] 失败原因，ARGV[4] 过期时间（秒），ARGV[5] 通知的channel，ARGV[6] 通知消息
+if(redis.call('hsetnx', KEYS[1], 'status', ARGV[1]) == 0) then
+    return 0
+end
+redis.call('hset', KEYS[1], 'userId', ARGV[2], 'reason', ARGV[3])
+redis.call('expire', KEYS[1], ARGV[4])
+redis.call('publish', ARGV[5], ARGV[6])
+return 1
@@ -0,0 +1,34 @@
+-- GCRA限流：每个key保存理论到达时间（TAT），一次请求把TAT推后一个发放间隔，TAT超过当前时间的部分不能超过突发容量
+-- 多个key（用户、秒杀券）全部通过才同时更新，任意一个不通过都不消耗其他key的额度
+-- KEYS[i] 限流key
+-- ARGV[1] 当前时间（毫秒）
+-- ARGV[2i] KEYS[i]的发放间隔（毫秒），ARGV[2i + 1] KEYS[i]的突发容量（请求数）
+-- 返回{0, 0}表示通过，否则返回{需要等待的毫秒数, 拒绝的key下标}
+local now = tonumber(ARGV[1])
+local tats = {}
+local retryAfter = 0
+local denied = 0
+for i = 1, #KEYS do
+    local interval = tonumber(ARGV[2 * i])
+    local burst = tonumber(ARGV[2 * i + 1])
+    local tat = tonumber(redis.call('get', KEYS[i]) or '0')
+    if(tat < now) then
+        tat = now
+    end
+    local newTat = tat + interval
+    -- 允许的最早时间，突发容量为burst个请求
+    local allowAt = newTat - burst * interval
+    if(now < allowAt and allowAt - now > retryAfter) then
+        retryAfter = allowAt - now
+        denied = i
+    end
+    tats[i] = newTat
+end
+if(denied > 0) then
+    return {math.ceil(retryAfter), denied}
+end
+for i = 1, #KEYS do
+    -- TAT之后key没有意义，随之过期
+    redis.call('set', KEYS[i], string.format('%.3f', tats[i]), 'PX', math.max(1, math.ceil(tats[i] - now)))
+end
+return {0, 0}
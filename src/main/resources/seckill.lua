@@ -5,28 +5,90 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- -- 1.3.订单id
 local orderId = ARGV[3]
+-- 1.4.订单消息写入的stream（分区），不传时写入stream.orders
+local streamKey = ARGV[4] or 'stream.orders'
+-- 1.5.一人一单的去重结构：set、bitmap或bucket，不传时为set
+local dedupMode = ARGV[5] or 'set'
+-- 1.6.bucket模式每个小hash的用户数
+local bucketSize = tonumber(ARGV[6] or '100')
+-- 1.7.bitmap模式偏移量的上限，超出的用户退回set
+local maxBitmapOffset = tonumber(ARGV[7] or '16777216')
+-- 1.8.去重key的过期时间（秒级时间戳），0表示不过期
+local expireAt = tonumber(ARGV[8] or '0')
+-- 1.9.当前时间（毫秒时间戳），0表示不检查秒杀时间
+local now = tonumber(ARGV[9] or '0')
+-- 1.10.库存由节点租用并在本地扣减时为1，脚本不再检查和扣减库存
+local leased = ARGV[10] == '1'
 
 -- 2.数据key
 -- 2.1.库存key
 local stockKey = 'seckill:stock:' .. voucherId
--- 2.2.订单key
-local orderKey = 'seckill:order:' .. voucherId
+-- 2.2.去重key和用户在其中的位置
+local uid = tonumber(userId)
+if(dedupMode == 'bitmap' and uid >= maxBitmapOffset) then
+    -- 超出bitmap偏移量上限的用户退回set
+    dedupMode = 'set'
+end
+local orderKey
+local orderField
+if(dedupMode == 'bitmap') then
+    orderKey = 'seckill:buyers:bitmap:' .. voucherId
+elseif(dedupMode == 'bucket') then
+    orderKey = 'seckill:buyers:bucket:' .. voucherId .. ':b' .. string.format('%d', math.floor(uid / bucketSize))
+    orderField = uid % bucketSize
+else
+    orderKey = 'seckill:order:' .. voucherId
+end
+
+-- 2.3.秒杀券元数据key
+local voucherKey = 'seckill:voucher:' .. voucherId
 
 -- 3.脚本业务
+-- 3.0.判断是否在秒杀时间内 HMGET voucherKey begin end，没有元数据的秒杀券不检查
+if(now > 0) then
+    local window = redis.call('hmget', voucherKey, 'begin', 'end')
+    if(window[1] and now < tonumber(window[1])) then
+        -- 秒杀尚未开始，返回3
+        return 3
+    end
+    if(window[2] and now > tonumber(window[2])) then
+        -- 秒杀已经结束，返回4
+        return 4
+    end
+end
 -- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
+if(not leased and tonumber(redis.call('get', stockKey)) <= 0) then
     -- 3.2.库存不足，返回1
     return 1
 end
--- 3.2.判断用户是否下单 SISMEMBER orderKey userId
-if(redis.call('sismember', orderKey, userId) == 1) then
+-- 3.2.判断用户是否下单 SISMEMBER / GETBIT / HEXISTS
+local ordered
+if(dedupMode == 'bitmap') then
+    ordered = redis.call('getbit', orderKey, uid)
+elseif(dedupMode == 'bucket') then
+    ordered = redis.call('hexists', orderKey, orderField)
+else
+    ordered = redis.call('sismember', orderKey, userId)
+end
+if(ordered == 1) then
     -- 3.3.存在，说明是重复下单，返回2
     return 2
 end
 -- 3.4.扣库存 incrby stockKey -1
-redis.call('incrby', stockKey, -1)
--- 3.5.下单（保存用户）sadd orderKey userId
-redis.call('sadd', orderKey, userId)
+if(not leased) then
+    redis.call('incrby', stockKey, -1)
+end
+-- 3.5.下单（保存用户）SADD / SETBIT / HSET，秒杀结束后过期
+if(dedupMode == 'bitmap') then
+    redis.call('setbit', orderKey, uid, 1)
+elseif(dedupMode == 'bucket') then
+    redis.call('hset', orderKey, orderField, 1)
+else
+    redis.call('sadd', orderKey, userId)
+end
+if(expireAt > 0) then
+    redis.call('expireat', orderKey, expireAt)
+end
 -- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
 return 0
\ No newline at end of file
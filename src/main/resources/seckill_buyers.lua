@@ -0,0 +1,60 @@
+-- 对账：检查已入库订单的用户是否都记录在redis的一人一单去重结构中，可选补写缺失的用户
+-- 去重key的布局与seckill.lua、seckill_sharded.lua相同；每次调用只检查一个分片的用户，所有key使用相同的hash tag
+-- KEYS[1] 分片（不分片时为整个秒杀券）的set去重key，用于确定脚本在哪个节点执行
+-- ARGV[1] 分片的key后缀，不分片时为优惠券id
+-- ARGV[2] 分片数，1表示不分片
+-- ARGV[3] 去重模式：set、bitmap或bucket
+-- ARGV[4] bucket模式每个小hash的用户数
+-- ARGV[5] bitmap模式偏移量的上限，超出的用户退回set
+-- ARGV[6] 去重key的过期时间（秒级时间戳），0表示不过期
+-- ARGV[7] 为1时补写缺失的用户
+-- ARGV[8...] 属于这个分片的用户id
+-- 返回redis中缺失的用户id
+local tag = ARGV[1]
+local shards = tonumber(ARGV[2])
+local bucketSize = tonumber(ARGV[4])
+local maxBitmapOffset = tonumber(ARGV[5])
+local expireAt = tonumber(ARGV[6])
+local repair = ARGV[7] == '1'
+local missing = {}
+for i = 8, #ARGV do
+    local userId = ARGV[i]
+    local uid = tonumber(userId)
+    -- 分片的秒杀券在分片内用 用户id / 分片数 作为bitmap和bucket的位置
+    local idx = uid
+    if(shards > 1) then
+        idx = math.floor(uid / shards)
+    end
+    local dedupMode = ARGV[3]
+    if(dedupMode == 'bitmap' and idx >= maxBitmapOffset) then
+        dedupMode = 'set'
+    end
+    local orderKey
+    local ordered
+    if(dedupMode == 'bitmap') then
+        orderKey = 'seckill:buyers:bitmap:' .. tag
+        ordered = redis.call('getbit', orderKey, idx)
+    elseif(dedupMode == 'bucket') then
+        orderKey = 'seckill:buyers:bucket:' .. tag .. ':b' .. string.format('%d', math.floor(idx / bucketSize))
+        ordered = redis.call('hexists', orderKey, idx % bucketSize)
+    else
+        orderKey = KEYS[1]
+        ordered = redis.call('sismember', orderKey, userId)
+    end
+    if(ordered == 0) then
+        missing[#missing + 1] = userId
+        if(repair) then
+            if(dedupMode == 'bitmap') then
+                redis.call('setbit', orderKey, idx, 1)
+            elseif(dedupMode == 'bucket') then
+                redis.call('hset', orderKey, idx % bucketSize, 1)
+            else
+                redis.call('sadd', orderKey, userId)
+            end
+            if(expireAt > 0) then
+                redis.call('expireat', orderKey, expireAt)
+            end
+        end
+    end
+end
+return missing
@@ -0,0 +1,11 @@
+-- 从秒杀库存中原子地取走一段库存：分片秒杀从其他分片借库存、再平衡时取走多余的库存（节点租用库存见seckill_lease_node.lua）
+-- KEYS[1] 库存key
+-- ARGV[1] 取走的数量
+-- 返回实际取到的数量，库存不足时取走剩余的全部，已售罄返回0
+local stock = tonumber(redis.call('get', KEYS[1]) or '0')
+if(stock <= 0) then
+    return 0
+end
+local n = math.min(stock, tonumber(ARGV[1]))
+redis.call('decrby', KEYS[1], n)
+return n
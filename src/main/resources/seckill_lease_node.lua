@@ -0,0 +1,22 @@
+-- 节点租用一段秒杀库存，并在租约持有者集合中登记本节点
+-- KEYS[1] 库存key
+-- KEYS[2] 租约持有者的zset，成员为节点id，分数为租约到期时间（毫秒时间戳）
+-- ARGV[1] 租用的数量
+-- ARGV[2] 节点id
+-- ARGV[3] 租约到期时间（毫秒时间戳）
+-- ARGV[4] 当前时间（毫秒时间戳）
+-- 返回租到的数量；库存为0时返回0，库存为0且没有其他节点持有租约（已经售罄）时返回-1
+local stock = tonumber(redis.call('get', KEYS[1]) or '0')
+if(stock > 0) then
+    local n = math.min(stock, tonumber(ARGV[1]))
+    redis.call('decrby', KEYS[1], n)
+    redis.call('zadd', KEYS[2], ARGV[3], ARGV[2])
+    return n
+end
+-- 本节点的租约已经用完，清除本节点和已经到期的持有者
+redis.call('zrem', KEYS[2], ARGV[2])
+redis.call('zremrangebyscore', KEYS[2], '-inf', ARGV[4])
+if(redis.call('zcard', KEYS[2]) == 0) then
+    return -1
+end
+return 0
@@ -0,0 +1,15 @@
+-- 对账：原子地读取一个分片（不分片时为整个秒杀券）redis一侧的剩余库存和已购买用户数
+-- 秒杀脚本扣库存和记录用户在同一次调用中完成，二者之和只在异常（订单丢失、手工修改等）时变化
+-- KEYS[1] 库存key
+-- KEYS[2] set模式的去重key，也保存bitmap模式中超出偏移量上限退回set的用户
+-- KEYS[3] bitmap模式的去重key
+-- 返回{剩余库存, 用户数, 库存key是否存在}
+local stock = 0
+local exists = 0
+local value = redis.call('get', KEYS[1])
+if(value) then
+    exists = 1
+    stock = tonumber(value)
+end
+local buyers = redis.call('scard', KEYS[2]) + redis.call('bitcount', KEYS[3])
+return {stock, buyers, exists}
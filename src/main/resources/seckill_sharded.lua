@@ -0,0 +1,62 @@
+-- 分片库存的秒杀脚本：每次调用只访问用户所在分片的库存key、去重key和订单stream，三者使用相同的hash tag（分片对应的stream名称），
+-- 在Redis Cluster上落在同一个slot；所有key都通过KEYS传入
+-- 秒杀时间由调用方用本地的秒杀券元数据检查，脚本不再读取不在同一个slot的元数据key
+-- 用户所在分片库存不足时，由调用方从其他分片借一个库存（seckill_lease.lua）后带上borrowed再调用一次
+-- 1.参数列表
+-- 1.1.用户所在分片的库存key
+local stockKey = KEYS[1]
+-- 1.2.用户所在分片的去重key：set、bitmap或bucket模式的一个小hash
+local orderKey = KEYS[2]
+-- 1.3.分片对应的订单stream（分区）
+local streamKey = KEYS[3]
+-- 1.4.优惠券id
+local voucherId = ARGV[1]
+-- 1.5.用户id
+local userId = ARGV[2]
+-- 1.6.订单id
+local orderId = ARGV[3]
+-- 1.7.去重模式：set、bitmap或bucket，超出bitmap偏移量上限的用户已由调用方退回set
+local dedupMode = ARGV[4]
+-- 1.8.用户在去重key中的位置：bitmap的偏移量或bucket的字段，set模式不使用
+local position = ARGV[5]
+-- 1.9.去重key的过期时间（秒级时间戳），0表示不过期
+local expireAt = tonumber(ARGV[6] or '0')
+-- 1.10.为1时已经从其他分片借到库存，不再检查和扣减本分片的库存
+local borrowed = ARGV[7] == '1'
+
+-- 2.脚本业务
+-- 2.1.判断用户是否下单 SISMEMBER / GETBIT / HEXISTS
+local ordered
+if(dedupMode == 'bitmap') then
+    ordered = redis.call('getbit', orderKey, position)
+elseif(dedupMode == 'bucket') then
+    ordered = redis.call('hexists', orderKey, position)
+else
+    ordered = redis.call('sismember', orderKey, userId)
+end
+if(ordered == 1) then
+    -- 存在，说明是重复下单，返回2
+    return 2
+end
+-- 2.2.判断本分片库存是否充足，不足时返回1，由调用方去其他分片借
+if(not borrowed) then
+    if(tonumber(redis.call('get', stockKey) or '0') <= 0) then
+        return 1
+    end
+    -- 2.3.扣库存 incrby stockKey -1
+    redis.call('incrby', stockKey, -1)
+end
+-- 2.4.下单（保存用户）SADD / SETBIT / HSET，秒杀结束后过期
+if(dedupMode == 'bitmap') then
+    redis.call('setbit', orderKey, position, 1)
+elseif(dedupMode == 'bucket') then
+    redis.call('hset', orderKey, position, 1)
+else
+    redis.call('sadd', orderKey, userId)
+end
+if(expireAt > 0) then
+    redis.call('expireat', orderKey, expireAt)
+end
+-- 2.5.发送消息到队列中
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
@@ -0,0 +1,5 @@
+-- 认领空闲时间超过阈值的pending消息，不论原来属于哪个消费者（包括已宕机的节点）
+-- KEYS[1] stream
+-- ARGV[1] 消费者组，ARGV[2] 认领后的消费者，ARGV[3] 最小空闲时间（毫秒），ARGV[4] 起始id，ARGV[5] 最多认领的条数
+-- 返回 {下一次的起始id, {{id, {field, value, ...}}, ...}}，起始id为0-0表示已扫描完
+return redis.call('xautoclaim', KEYS[1], ARGV[1], ARGV[2], ARGV[3], ARGV[4], 'COUNT', ARGV[5])
@@ -0,0 +1,4 @@
+-- 删除id小于ARGV[1]的消息，~表示近似裁剪，按整个宏节点删除，开销更小
+-- KEYS[1] stream
+-- ARGV[1] 最小保留id
+return redis.call('xtrim', KEYS[1], 'MINID', '~', ARGV[1])
@@ -7,29 +7,42 @@ import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillBuyerDedup;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import javax.annotation.Resource;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -46,6 +59,9 @@ class HmDianPingApplicationTests {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillBuyerDedup seckillBuyerDedup;
+
     private ExecutorService es = Executors.newFixedThreadPool(500);
     @Test
     void testIdWorker() throws InterruptedException {
@@ -67,6 +83,121 @@ class HmDianPingApplicationTests {
 
     }
 
+    /**
+     * 对比每个id INCR一次和号段模式的耗时，两种方式生成相同数量的id
+     */
+    @Test
+    void testIdWorkerSegment() throws InterruptedException {
+        int threads = 300;
+        int perThread = 100;
+        long incr = measureIdWorker(threads, perThread, () -> redisIdWorker.nextIdByIncr("bench"));
+        // 先生成一个id，让号段租用不计入耗时
+        redisIdWorker.nextId("bench");
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        // 同一个线程先后拿到的id必须递增
+        ThreadLocal<Long> last = ThreadLocal.withInitial(() -> 0L);
+        AtomicInteger decreasing = new AtomicInteger();
+        long segment = measureIdWorker(threads, perThread, () -> {
+            long id = redisIdWorker.nextId("bench");
+            if (id <= last.get()) {
+                decreasing.incrementAndGet();
+            }
+            last.set(id);
+            ids.add(id);
+        });
+        System.out.println("incr time = " + incr + "ms, segment time = " + segment + "ms");
+        // 号段模式下id不能重复
+        assertEquals(threads * perThread, ids.size());
+        assertEquals(0, decreasing.get());
+    }
+
+    private long measureIdWorker(int threads, int perThread, Runnable nextId) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(threads);
+        Runnable task = () -> {
+            for (int i = 0; i < perThread; i++) {
+                nextId.run();
+            }
+            latch.countDown();
+        };
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        return System.currentTimeMillis() - begin;
+    }
+
+    /**
+     * 对比一人一单三种去重结构的内存和秒杀脚本耗时，用户id为连续的1 ~ users
+     */
+    @Test
+    void testBuyerDedup() {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("seckill.lua"));
+        script.setResultType(Long.class);
+        long voucherId = 999999999L;
+        int users = 20000;
+        String stream = "stream.orders.bench";
+        // 去重参数由SeckillBuyerDedup生成，脚本参数变化时这里不会失效；只替换去重模式，不设置过期时间
+        String[] dedup = seckillBuyerDedup.scriptArgs(Long.MAX_VALUE);
+        int bucketSize = Integer.parseInt(dedup[1]);
+        assertTrue(users < Long.parseLong(dedup[2]), "用户id需要在bitmap偏移量上限之内");
+        Map<String, String> keyTypes = new HashMap<>();
+        keyTypes.put("set", "set");
+        keyTypes.put("bitmap", "string");
+        keyTypes.put("bucket", "hash");
+        for (String mode : new String[]{"set", "bitmap", "bucket"}) {
+            dedup[0] = mode;
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(users + 1));
+            long begin = System.nanoTime();
+            for (long userId = 1; userId <= users; userId++) {
+                Long result = stringRedisTemplate.execute(script, Collections.emptyList(),
+                        buyerDedupArgs(voucherId, userId, stream, dedup));
+                assertEquals(0L, result);
+            }
+            long micros = (System.nanoTime() - begin) / 1000 / users;
+            // 重复下单必须被拒绝
+            Long again = stringRedisTemplate.execute(script, Collections.emptyList(),
+                    buyerDedupArgs(voucherId, 1L, stream, dedup));
+            assertEquals(2L, again, mode);
+            List<String> keys = new ArrayList<>();
+            if ("set".equals(mode)) {
+                keys.add("seckill:order:" + voucherId);
+            } else if ("bitmap".equals(mode)) {
+                keys.add("seckill:buyers:bitmap:" + voucherId);
+            } else {
+                for (long b = 0; b <= users / bucketSize; b++) {
+                    keys.add("seckill:buyers:bucket:" + voucherId + ":b" + b);
+                }
+            }
+            long bytes = 0;
+            for (String key : keys) {
+                assertEquals(keyTypes.get(mode), stringRedisTemplate.type(key).code(), key);
+                Long usage = stringRedisTemplate.execute((RedisCallback<Long>) connection -> (Long) connection.execute(
+                        "MEMORY", "USAGE".getBytes(StandardCharsets.UTF_8), key.getBytes(StandardCharsets.UTF_8),
+                        "SAMPLES".getBytes(StandardCharsets.UTF_8), "0".getBytes(StandardCharsets.UTF_8)));
+                bytes += usage == null ? 0 : usage;
+            }
+            assertTrue(bytes > 0, mode);
+            System.out.println(mode + ": memory = " + bytes + " bytes, keys = " + keys.size()
+                    + ", avg script time = " + micros + "us");
+            stringRedisTemplate.delete(keys);
+        }
+        stringRedisTemplate.delete(Arrays.asList(SECKILL_STOCK_KEY + voucherId, stream));
+    }
+
+    /**
+     * seckill.lua的参数：不检查秒杀时间，不使用库存租用，订单id与用户id相同
+     */
+    private static Object[] buyerDedupArgs(long voucherId, long userId, String stream, String[] dedup) {
+        List<String> args = new ArrayList<>(Arrays.asList(
+                String.valueOf(voucherId), String.valueOf(userId), String.valueOf(userId), stream));
+        args.addAll(Arrays.asList(dedup));
+        args.add("0");
+        args.add("0");
+        return args.toArray();
+    }
+
     @Test
     void testSaveShopToRedis() throws InterruptedException {
 //        shopService.saveShop2Redis(1L, 10L);
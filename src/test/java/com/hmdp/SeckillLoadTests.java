@@ -0,0 +1,216 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillStockLeases;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀压测，需要真实的redis和mysql，不随mvn test运行，去掉@Disabled后手动运行
+ * 除了输出耗时，还检查没有超卖、每个用户最多一单
+ *
+ * @author hyh
+ * @date 2026/10/18
+ */
+@Tag("load")
+@Disabled("压测，需要redis和mysql，手动运行")
+@SpringBootTest
+class SeckillLoadTests {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillStockLeases seckillStockLeases;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    /**
+     * 对比同步秒杀和异步秒杀：同步版本用200个线程模拟tomcat线程池，每个线程等待redis返回；
+     * 异步版本只用一个线程发起请求，同时进行的请求数只受inFlight限制
+     * 两种方式使用不同的用户购买同一个秒杀券，每个请求都能成功下单
+     */
+    @Test
+    void testSeckillAsync() throws InterruptedException {
+        int requests = 20000;
+        int stock = requests * 2;
+        Long voucherId = addSeckillVoucher(stock);
+
+        // 同步：200个线程，每个请求占用一个线程直到redis返回
+        ExecutorService tomcat = Executors.newFixedThreadPool(200);
+        AtomicInteger blockingOk = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(requests);
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < requests; i++) {
+            long userId = i + 1;
+            tomcat.submit(() -> {
+                UserHolder.saveUser(user(userId));
+                try {
+                    if (voucherOrderService.seckillVoucher(voucherId).getSuccess()) {
+                        blockingOk.incrementAndGet();
+                    }
+                } finally {
+                    UserHolder.removeUser();
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long blocking = System.currentTimeMillis() - begin;
+        tomcat.shutdown();
+
+        // 异步：一个线程发起所有请求，最多inFlight个请求同时等待redis
+        Semaphore inFlight = new Semaphore(1000);
+        AtomicInteger asyncOk = new AtomicInteger();
+        List<CompletableFuture<Result>> futures = new ArrayList<>(requests);
+        begin = System.currentTimeMillis();
+        for (int i = 0; i < requests; i++) {
+            inFlight.acquire();
+            UserHolder.saveUser(user(requests + i + 1));
+            futures.add(voucherOrderService.seckillVoucherAsync(voucherId).whenComplete((result, e) -> {
+                if (result != null && result.getSuccess()) {
+                    asyncOk.incrementAndGet();
+                }
+                inFlight.release();
+            }));
+            UserHolder.removeUser();
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        long async = System.currentTimeMillis() - begin;
+
+        System.out.println("blocking: " + blocking + "ms, ok = " + blockingOk.get()
+                + ", async: " + async + "ms, ok = " + asyncOk.get());
+        // 已经下过单的用户再次购买必须被拒绝
+        UserHolder.saveUser(user(1));
+        try {
+            assertFalse(voucherOrderService.seckillVoucherAsync(voucherId).join().getSuccess());
+        } finally {
+            UserHolder.removeUser();
+        }
+        seckillStockLeases.returnAll();
+        assertOrders(voucherId, stock, blockingOk.get() + asyncOk.get());
+    }
+
+    /**
+     * 库存租用的压测：hmdp.seckill.stock.lease.enabled分别为true和false各运行一次，比较吞吐量
+     * 库存只够一半的请求，同时覆盖本地扣减、续租和售罄
+     */
+    @Test
+    void testSeckillLease() throws InterruptedException {
+        int requests = 50000;
+        int stock = requests / 2;
+        Long voucherId = addSeckillVoucher(stock);
+
+        ExecutorService tomcat = Executors.newFixedThreadPool(200);
+        AtomicInteger ok = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(requests);
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < requests; i++) {
+            long userId = i + 1;
+            tomcat.submit(() -> {
+                UserHolder.saveUser(user(userId));
+                try {
+                    if (voucherOrderService.seckillVoucher(voucherId).getSuccess()) {
+                        ok.incrementAndGet();
+                    }
+                } finally {
+                    UserHolder.removeUser();
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long cost = System.currentTimeMillis() - begin;
+        tomcat.shutdown();
+        // 归还本节点没用完的租约，redis中剩余的库存应该等于总库存减去成功的订单数
+        seckillStockLeases.returnAll();
+
+        System.out.println("lease: " + seckillStockLeases.isEnabled() + ", " + cost + "ms, "
+                + requests * 1000L / Math.max(1, cost) + " req/s, ok = " + ok.get());
+        // 请求数是库存的两倍，库存必须卖完
+        assertEquals(stock, ok.get());
+        assertOrders(voucherId, stock, ok.get());
+    }
+
+    /**
+     * 检查没有超卖：成功数不超过库存，redis剩余库存加成功数等于总库存；
+     * 等待订单全部入库后检查每个用户最多一单
+     */
+    private void assertOrders(Long voucherId, int stock, int ok) throws InterruptedException {
+        assertTrue(ok <= stock, "超卖");
+        assertEquals(stock - ok, redisStock(voucherId));
+        List<VoucherOrder> orders = voucherOrderService.query().select("user_id").eq("voucher_id", voucherId).list();
+        for (int i = 0; i < 60 && orders.size() < ok; i++) {
+            Thread.sleep(1000);
+            orders = voucherOrderService.query().select("user_id").eq("voucher_id", voucherId).list();
+        }
+        assertEquals(ok, orders.size());
+        Set<Long> users = orders.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        assertEquals(orders.size(), users.size(), "同一个用户有多个订单");
+    }
+
+    /**
+     * redis中剩余的库存，分片的秒杀券为各分片之和
+     */
+    private long redisStock(Long voucherId) {
+        long total = 0;
+        for (String value : stringRedisTemplate.opsForValue().multiGet(seckillStockShards.stockKeys(voucherId))) {
+            total += value == null ? 0 : Long.parseLong(value);
+        }
+        return total;
+    }
+
+    private Long addSeckillVoucher(int stock) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(100L);
+        voucher.setType(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    private static UserDTO user(long id) {
+        UserDTO user = new UserDTO();
+        user.setId(id);
+        return user;
+    }
+}